@@ -0,0 +1,26 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.util.Log;
+
+/**
+ * Sends CoreLog output to logcat, so the shared server code logs like the rest of the app
+ */
+class AndroidLogSink implements CoreLog.Sink {
+    private static final AndroidLogSink INSTANCE = new AndroidLogSink();
+
+    static void install() {
+        CoreLog.setSink(INSTANCE);
+    }
+
+    @Override
+    public boolean isLoggable(String tag, int level) {
+        // Log.isLoggable() is false below INFO unless raised with setprop, but the app
+        // has always logged DEBUG, so only VERBOSE is left to the property
+        return level > CoreLog.VERBOSE || Log.isLoggable(tag, level);
+    }
+
+    @Override
+    public void println(int level, String tag, String message) {
+        Log.println(level, tag, message);
+    }
+}
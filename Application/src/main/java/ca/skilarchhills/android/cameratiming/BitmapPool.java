@@ -0,0 +1,96 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the full size bitmaps preview grabs, crops and thumbnails are drawn into.
+ *
+ * A bitmap is handed out best fit by allocation size and reconfigured to the size asked
+ * for, so one pool serves every size the capture path needs.  At most a set number of
+ * bytes is kept idle; bitmaps released past that are recycled.  Like {@link BufferPool}
+ * it counts allocations, which should stop moving once capture has warmed up.
+ */
+class BitmapPool {
+    private static final Bitmap.Config CONFIG = Bitmap.Config.ARGB_8888;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final long maxPooledBytes;
+    private final ArrayList<Bitmap> free = new ArrayList<>();
+    private long pooledBytes;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes Most bytes kept in idle bitmaps
+     */
+    BitmapPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * A mutable ARGB_8888 bitmap of the given size, with arbitrary contents
+     */
+    Bitmap acquire(int width, int height) {
+        int needed = width * height * BYTES_PER_PIXEL;
+        synchronized (free) {
+            int best = -1;
+            for (int i = 0; i < free.size(); i++) {
+                int size = free.get(i).getAllocationByteCount();
+                if (size >= needed && (best < 0 || size < free.get(best).getAllocationByteCount()))
+                    best = i;
+            }
+            if (best >= 0) {
+                Bitmap bitmap = free.remove(best);
+                pooledBytes -= bitmap.getAllocationByteCount();
+                reuses.incrementAndGet();
+                if (bitmap.getWidth() != width || bitmap.getHeight() != height ||
+                        bitmap.getConfig() != CONFIG)
+                    bitmap.reconfigure(width, height, CONFIG);
+                return bitmap;
+            }
+        }
+
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(needed);
+        return Bitmap.createBitmap(width, height, CONFIG);
+    }
+
+    /**
+     * Hands a bitmap back, the caller must not touch it afterwards.  Null is ignored.
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        if (!bitmap.isMutable()) {
+            // Can't be drawn into or reconfigured
+            bitmap.recycle();
+            return;
+        }
+        synchronized (free) {
+            int size = bitmap.getAllocationByteCount();
+            if (pooledBytes + size <= maxPooledBytes) {
+                free.add(bitmap);
+                pooledBytes += size;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    long getAllocations() {
+        return allocations.get();
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    long getReuses() {
+        return reuses.get();
+    }
+}
@@ -38,11 +38,13 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ExifInterface;
+import android.media.Image;
 import android.media.ImageReader;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
@@ -50,6 +52,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v13.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -68,12 +71,14 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -97,6 +102,9 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
         listener = new OrientationEventListener (getApplicationContext(),
                 SensorManager.SENSOR_DELAY_NORMAL) {
             public void onOrientationChanged (int orientation) {
+                if(orientation != ORIENTATION_UNKNOWN)
+                    mDeviceRotation = ((orientation + 45) / 90 * 90) % 360;
+
                 if(orientation > 315 && orientation < 45)
                     mOrientation = ExifInterface.ORIENTATION_UNDEFINED;
                 else if(orientation >= 45 && orientation <= 135)
@@ -119,28 +127,48 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
         zoomSpinner.setAdapter(adapter);
         zoomSpinner.setOnItemSelectedListener(this);
         mZoomRect = new Rect();
+
+        // Initialize the capture mode spinner
+        captureModeSpinner = findViewById(R.id.capture_mode_spinner);
+        ArrayAdapter<CharSequence> modeAdapter = ArrayAdapter.createFromResource(
+                getApplicationContext(), R.array.capture_mode_array, android.R.layout.simple_spinner_item);
+        modeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        captureModeSpinner.setAdapter(modeAdapter);
+        captureModeSpinner.setOnItemSelectedListener(this);
+
+        // Initialize the finish band spinner
+        finishBandSpinner = findViewById(R.id.finish_band_spinner);
+        ArrayAdapter<CharSequence> bandAdapter = ArrayAdapter.createFromResource(
+                getApplicationContext(), R.array.finish_band_array, android.R.layout.simple_spinner_item);
+        bandAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        finishBandSpinner.setAdapter(bandAdapter);
+        finishBandSpinner.setOnItemSelectedListener(this);
+
+        // Initialize the trigger merging spinner, merging bounces by default
+        coalesceSpinner = findViewById(R.id.coalesce_spinner);
+        ArrayAdapter<CharSequence> coalesceAdapter = ArrayAdapter.createFromResource(
+                getApplicationContext(), R.array.coalesce_array, android.R.layout.simple_spinner_item);
+        coalesceAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        coalesceSpinner.setAdapter(coalesceAdapter);
+        coalesceSpinner.setSelection(2);
+        coalesceSpinner.setOnItemSelectedListener(this);
+
+        mCatalog = ImageCatalog.get(getExternalFilesDir(null));
+        mCapturePipeline = new CapturePipeline(CapturePipeline.DEFAULT_CAPACITY, mCatalog,
+                QualityController.get(), mPipelineListener);
+        mCapturePipeline.setUseStore(getResources().getBoolean(R.bool.segment_store));
+        mCapturePipeline.setDurability(getResources().getInteger(R.integer.durability));
     }
 
     @Override
     public void onResume() {
         super.onResume();
         startBackgroundThread();
+        mCapturePipeline.start();
 
-        // Start our server
+        // Start our server, it finds existing pictures through the catalog
         Intent intent= new Intent(this, SocketService.class);
 
-        // Add all the files already existing
-        File[] initialPics = getExternalFilesDir(null).listFiles(new FilenameFilter() {
-            public boolean accept(File directory, String fileName) {
-                return fileName.matches("\\d+\\.jpg");
-            }
-        });
-        String[] fileNames = new String[initialPics.length];
-        for(int i = 0; i < initialPics.length; i++) {
-            fileNames[i] = initialPics[i].getAbsolutePath();
-        }
-        intent.putExtra(SocketService.initialPicsTag, fileNames);
-
         // Bind to SocketService
         bindService(intent, this, Context.BIND_AUTO_CREATE);
 
@@ -165,6 +193,9 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
         stopBackgroundThread();
         listener.disable();
 
+        // Pictures already taken carry on to the disk without holding up the UI thread
+        mCapturePipeline.stop();
+
         super.onPause();
 
         // Unbind socket
@@ -244,6 +275,54 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
      */
     private Spinner zoomSpinner;
 
+    /**
+     * Spinner that holds the capture mode
+     */
+    private Spinner captureModeSpinner;
+
+    /**
+     * Spinner that holds the part of the picture around the finish line to keep
+     */
+    private Spinner finishBandSpinner;
+
+    /**
+     * Spinner that holds how close together triggers share a capture
+     */
+    private Spinner coalesceSpinner;
+
+    /**
+     * Decides which triggers start a capture, in the sensor's time base
+     */
+    private final TriggerCoalescer mTriggerCoalescer = new TriggerCoalescer(0);
+
+    /**
+     * Every picture and trigger, shared with the capture pipeline and the server
+     */
+    private ImageCatalog mCatalog;
+
+    /**
+     * Preview and ring buffer pictures are cropped to this before encoding, stills come
+     * from the camera's encoder whole
+     */
+    private FinishBand mFinishBand = FinishBand.FULL;
+
+    /**
+     * Capture modes, see {@link #spinnerPositionToCaptureMode(int)}
+     */
+    private static final int CAPTURE_MODE_PREVIEW = 0;
+    private static final int CAPTURE_MODE_STILL = 1;
+    private static final int CAPTURE_MODE_RING = 2;
+
+    /**
+     * How a trigger turns into pictures
+     */
+    private int mCaptureMode = CAPTURE_MODE_PREVIEW;
+
+    /**
+     * Number of hardware JPEGs captured per trigger in {@link #CAPTURE_MODE_STILL}
+     */
+    private int mBurstLength = 1;
+
     /**
      * ID of the current {@link CameraDevice}.
      */
@@ -314,6 +393,163 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
      */
     private ImageReader mImageReader;
 
+    /**
+     * Number of preview frames kept in {@link #mFrameRing}
+     */
+    private static final int RING_BUFFER_SLOTS = 6;
+
+    /**
+     * Frames saved on either side of the one closest to the trigger
+     */
+    private static final int RING_FRAMES_EACH_SIDE = 1;
+
+    /**
+     * How long to keep buffering after a trigger before picking frames
+     */
+    private static final long RING_POST_TRIGGER_MS = 100;
+
+    /**
+     * Preview frames dropped for a full ring between log lines, one second at 30 fps
+     */
+    private static final int RING_DROP_LOG_INTERVAL = 30;
+
+    /**
+     * An {@link ImageReader} that feeds YUV preview frames into {@link #mFrameRing}
+     */
+    private ImageReader mYuvReader;
+
+    /**
+     * The most recent preview frames, for {@link #CAPTURE_MODE_RING}
+     */
+    private FrameRingBuffer mFrameRing;
+
+    /**
+     * Maps sensor timestamps to wall clock time, replaced once the camera's time base is known
+     */
+    private SensorClock mSensorClock = new SensorClock(false);
+
+    /**
+     * Sensor timestamp of the last completed preview frame, roughly what the TextureView shows
+     */
+    private volatile long mLastPreviewTimestamp;
+
+    /**
+     * Keeps two preview pictures of the same frame from sharing a name
+     */
+    private final PictureTimes mPreviewTimes = new PictureTimes();
+
+    // Exposure of the last completed preview frame, for the EXIF of preview and ring pictures
+    private volatile long mLastExposureNanos;
+    private volatile int mLastSensitivity;
+    private volatile float mLastFocalLength;
+
+    /**
+     * Preview frames the ring had no room for, only touched on the camera thread
+     */
+    private int mDroppedPreviewFrames;
+
+    /**
+     * Copies every preview frame from {@link #mYuvReader} into {@link #mFrameRing}
+     */
+    private final ImageReader.OnImageAvailableListener mOnYuvAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null)
+                return;
+
+            try {
+                if (!mFrameRing.put(image) && ++mDroppedPreviewFrames % RING_DROP_LOG_INTERVAL == 1)
+                    Log.w(TAG, "Frame ring full, " + mDroppedPreviewFrames + " preview frames dropped");
+            } finally {
+                image.close();
+            }
+        }
+
+    };
+
+    /**
+     * Triggers still waiting on frames from {@link #mImageReader}, oldest first
+     */
+    private final ArrayDeque<StillTrigger> mPendingStills = new ArrayDeque<>();
+
+    /**
+     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
+     * still image is ready to be saved.
+     */
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null)
+                return;
+
+            try {
+                StillTrigger trigger;
+                synchronized (mPendingStills) {
+                    trigger = mPendingStills.peek();
+                    if (trigger == null) {
+                        Log.w(TAG, "Dropping still image without a trigger");
+                        return;
+                    }
+                    if (--trigger.remaining == 0)
+                        mPendingStills.poll();
+                }
+
+                // The image timestamp is the SENSOR_TIMESTAMP of its CaptureResult
+                long timeNanos = mSensorClock.toWallNanos(image.getTimestamp());
+
+                // The camera already encoded it, copy the bytes out so the image can be reused
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                CapturePipeline.Job job = new CapturePipeline.Job(timeNanos, trigger.triggerNanos,
+                        CapturePipeline.Job.KEEP_ORIENTATION,
+                        new File(getExternalFilesDir(null), ImageName.format(timeNanos)));
+                job.jpegLength = buffer.remaining();
+                job.jpeg = mCapturePipeline.getBuffers().acquire(job.jpegLength);
+                buffer.get(job.jpeg, 0, job.jpegLength);
+                job.grabbedNanos = SystemClock.elapsedRealtimeNanos();
+
+                if (!mCapturePipeline.submit(job)) {
+                    // Never wait here, the reader only has a few images to go round
+                    mCapturePipeline.getBuffers().release(job.jpeg);
+                    Log.w(TAG, "Capture pipeline full or stopped, dropping still image");
+                }
+            } finally {
+                image.close();
+            }
+        }
+
+    };
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} for still captures, makes sure a failed
+     * frame doesn't leave its trigger waiting forever.
+     */
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            // A failure after the sensor was read out still delivers its image, which
+            // consumes the trigger in the listener
+            if (failure.wasImageCaptured())
+                return;
+
+            StillTrigger trigger = (StillTrigger) request.getTag();
+            synchronized (mPendingStills) {
+                if (trigger != null && --trigger.remaining == 0)
+                    mPendingStills.remove(trigger);
+            }
+        }
+
+    };
+
     /**
      * {@link CaptureRequest.Builder} for the camera preview
      */
@@ -345,11 +581,26 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
      */
     private int mOrientation = 0;
 
+    /**
+     * Physical rotation of the device in degrees, rounded to a multiple of 90
+     */
+    private int mDeviceRotation = 0;
+
+    /**
+     * Orientation of the camera sensor relative to the device's natural orientation
+     */
+    private int mSensorOrientation;
+
     /**
      * Context to use when making Toasts
      */
     private Context mContext;
 
+    /**
+     * Encodes and saves pictures off the UI thread
+     */
+    private CapturePipeline mCapturePipeline;
+
 
     /**
      * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
@@ -358,7 +609,21 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
             = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
-            // Do nothing, we would initiate capture here if we we're saving the surface
+            // Only preview frames come through here, keep the clock mapping fresh with them
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp != null) {
+                mSensorClock.calibrate();
+                mLastPreviewTimestamp = timestamp;
+            }
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposure != null)
+                mLastExposureNanos = exposure;
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (sensitivity != null)
+                mLastSensitivity = sensitivity;
+            Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+            if (focalLength != null)
+                mLastFocalLength = focalLength;
         }
 
         @Override
@@ -448,15 +713,32 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
                         Arrays.asList(sizes),
                         new CompareSizesByArea());
 
-                // This is never used, but we need it here so we don't crash
+                // Full resolution hardware JPEGs for the still and burst capture modes
                 mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
                         ImageFormat.JPEG, /*maxImages*/6);
+                mImageReader.setOnImageAvailableListener(
+                        mOnImageAvailableListener, mBackgroundHandler);
+
+                // Preview sized YUV frames for the ring buffer, same aspect ratio as the stills
+                Size ringSize = chooseRingBufferSize(
+                        map.getOutputSizes(ImageFormat.YUV_420_888), largest);
+                mYuvReader = ImageReader.newInstance(ringSize.getWidth(), ringSize.getHeight(),
+                        ImageFormat.YUV_420_888, /*maxImages*/3);
+                mYuvReader.setOnImageAvailableListener(mOnYuvAvailableListener, mBackgroundHandler);
+                mFrameRing = new FrameRingBuffer(RING_BUFFER_SLOTS,
+                        ringSize.getWidth(), ringSize.getHeight());
+
+                // Lets triggers be compared against sensor timestamps
+                Integer timestampSource = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mSensorClock = new SensorClock(timestampSource != null &&
+                        timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
 
                 // Find out if we need to swap dimension to get the preview size relative to sensor
                 // coordinate.
                 int displayRotation = getWindowManager().getDefaultDisplay().getRotation();
                 //noinspection ConstantConditions
-                int mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
                 boolean swappedDimensions = false;
                 switch (displayRotation) {
                     case Surface.ROTATION_0:
@@ -575,6 +857,10 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mYuvReader) {
+                mYuvReader.close();
+                mYuvReader = null;
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -626,7 +912,8 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
             mPreviewRequestBuilder.addTarget(surface);
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface(),
+                    mYuvReader.getSurface()),
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -649,6 +936,10 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_SCENE_MODE,
                                         CaptureRequest.CONTROL_SCENE_MODE_SPORTS);
 
+                                // Only feed the ring buffer when it is in use
+                                if (mCaptureMode == CAPTURE_MODE_RING)
+                                    mPreviewRequestBuilder.addTarget(mYuvReader.getSurface());
+
                                 // Finally, we start displaying the camera preview.
                                 mPreviewRequest = mPreviewRequestBuilder.build();
                                 mCaptureSession.setRepeatingRequest(mPreviewRequest,
@@ -703,48 +994,273 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
         mTextureView.setTransform(matrix);
     }
 
+    /**
+     * Handles a trigger key.  The trigger is timed from when the key went down rather than
+     * when it got here, always logged, and either starts a capture or joins the one started
+     * by a trigger just before it.
+     */
+    private void onTrigger(KeyEvent keyEvent) {
+        // Event times are uptimeMillis, so only their age carries over to the other clocks
+        long ageNanos = (SystemClock.uptimeMillis() - keyEvent.getEventTime()) * 1000000;
+        Metrics.KEY_EVENT.record(ageNanos);
+        long triggerNanos = SystemClock.elapsedRealtimeNanos() - ageNanos;
+        long triggerSensorNanos = mSensorClock.now() - ageNanos;
+
+        boolean capture = mTriggerCoalescer.offer(triggerSensorNanos);
+        logTrigger(mSensorClock.toWallNanos(triggerSensorNanos),
+                mSensorClock.toWallNanos(mTriggerCoalescer.getBurstStart()));
+        if (capture)
+            takePicture(triggerNanos, triggerSensorNanos);
+    }
+
+    /**
+     * Tags a job with the exposure settings of the latest preview frame
+     */
+    private void setExposure(CapturePipeline.Job job) {
+        job.exposureNanos = mLastExposureNanos;
+        job.iso = mLastSensitivity;
+        job.focalLength = mLastFocalLength;
+    }
+
+    /**
+     * Adds a trigger to the catalog's trigger log, off the main thread when the camera
+     * thread is running
+     */
+    private void logTrigger(final long timeNanos, final long burstNanos) {
+        Runnable log = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCatalog.getTriggers().append(timeNanos, burstNanos);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "Couldn't log trigger at " + timeNanos);
+                }
+            }
+        };
+        Handler handler = mBackgroundHandler;
+        if (handler == null || !handler.post(log))
+            log.run();
+    }
+
     /**
      * Initiate a still image capture.
+     *
+     * @param triggerNanos       Elapsed realtime of the trigger
+     * @param triggerSensorNanos Time of the trigger in the sensor's time base
      */
-    public void takePicture() {
+    private void takePicture(long triggerNanos, long triggerSensorNanos) {
         if (networkService == null || !networkService.isConnected()) {
             Toast.makeText(mContext, "Server not started, won't be able to sync file", Toast.LENGTH_SHORT).show();
         }
 
-        long time = System.currentTimeMillis();
+        if (mCaptureMode == CAPTURE_MODE_STILL) {
+            takeStillPicture(triggerNanos);
+            return;
+        } else if (mCaptureMode == CAPTURE_MODE_RING) {
+            takeRingBufferPicture(triggerNanos, triggerSensorNanos);
+            return;
+        }
+
+        // Go by the frame on screen, unless the preview hasn't produced one yet
+        long sensorNanos = mLastPreviewTimestamp != 0 ? mLastPreviewTimestamp : triggerSensorNanos;
+        long timeNanos = mPreviewTimes.next(mSensorClock.toWallNanos(sensorNanos));
+        CapturePipeline.Job job = new CapturePipeline.Job(timeNanos, triggerNanos, mOrientation,
+                new File(getExternalFilesDir(null), ImageName.format(timeNanos)));
+        job.bitmap = grabPreview();
+        job.grabbedNanos = SystemClock.elapsedRealtimeNanos();
+        setExposure(job);
+        if (job.bitmap != null && !mFinishBand.isFull())
+            job.crop = mFinishBand.crop(job.bitmap.getWidth(), job.bitmap.getHeight(),
+                    exifOrientationToDegrees(mOrientation));
+
+        if (!mCapturePipeline.submit(job)) {
+            mCapturePipeline.getBitmaps().release(job.bitmap);
+            if (mCapturePipeline.isRunning())
+                Toast.makeText(mContext, "Still saving earlier pictures, picture dropped", Toast.LENGTH_SHORT).show();
+            else
+                Toast.makeText(mContext, "Capture pipeline not running, picture dropped", Toast.LENGTH_SHORT).show();
+        }
+    }
 
-        Bitmap pic = mTextureView.getBitmap();
+    /**
+     * Copies the frame on screen into a pooled bitmap
+     * @return the bitmap, or null if the preview isn't showing anything yet
+     */
+    private Bitmap grabPreview() {
+        int width = mTextureView.getWidth();
+        int height = mTextureView.getHeight();
+        if (!mTextureView.isAvailable() || width <= 0 || height <= 0)
+            return null;
+
+        BitmapPool pool = mCapturePipeline.getBitmaps();
+        Bitmap bitmap = pool.acquire(width, height);
+        Bitmap grabbed = mTextureView.getBitmap(bitmap);
+        if (grabbed != bitmap)
+            pool.release(bitmap);
+        return grabbed;
+    }
 
-        File mFile = new File(getExternalFilesDir(null), time + ".jpg");
+    /**
+     * Fires a burst of {@link #mBurstLength} still captures into {@link #mImageReader}
+     *
+     * @param triggerNanos Elapsed realtime of the trigger
+     */
+    private void takeStillPicture(long triggerNanos) {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            Toast.makeText(mContext, "Camera not ready, picture dropped", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        FileOutputStream output = null;
+        StillTrigger trigger = new StillTrigger(triggerNanos, mBurstLength);
         try {
-            output = new FileOutputStream(mFile);
-            pic.compress(Bitmap.CompressFormat.JPEG, 95, output);
-
-            // Fix orientation
-            ExifInterface exif = new ExifInterface(mFile.getAbsolutePath());
-            exif.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(mOrientation));
-            exif.saveAttributes();
-        } catch (IOException e) {
+            CaptureRequest.Builder captureBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            captureBuilder.addTarget(mImageReader.getSurface());
+
+            // Use the same AE and AF modes as the preview.
+            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            setAutoFlash(captureBuilder);
+            captureBuilder.set(CaptureRequest.CONTROL_SCENE_MODE,
+                    CaptureRequest.CONTROL_SCENE_MODE_SPORTS);
+
+            // Same zoom as the preview, and let the camera handle orientation.  The finish
+            // band isn't applied, the camera widens any crop region to the JPEG's aspect
+            // ratio around its centre, so a band would come back as a plain zoom.
+            int rotation = (mSensorOrientation + mDeviceRotation) % 360;
+            captureBuilder.set(CaptureRequest.SCALER_CROP_REGION, mZoomRect);
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+            captureBuilder.set(CaptureRequest.JPEG_QUALITY,
+                    (byte) QualityController.get().getQuality());
+            captureBuilder.setTag(trigger);
+
+            CaptureRequest request = captureBuilder.build();
+            List<CaptureRequest> burst = new ArrayList<>(mBurstLength);
+            for (int i = 0; i < mBurstLength; i++)
+                burst.add(request);
+
+            synchronized (mPendingStills) {
+                mPendingStills.add(trigger);
+            }
+            mCaptureSession.captureBurst(burst, mStillCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
             e.printStackTrace();
-        } finally {
-            if (null != output) {
-                try {
-                    output.close();
-                    // Now send the actual file to the service
-                    Intent service = new Intent(getApplicationContext(), SocketService.class);
-                    service.putExtra(SocketService.picsTag, mFile.getAbsolutePath());
-                    getApplicationContext().startService(service);
-                } catch (IOException e) {
-                    e.printStackTrace();
+            synchronized (mPendingStills) {
+                mPendingStills.remove(trigger);
+            }
+        }
+    }
+
+    /**
+     * Saves the buffered preview frames around the trigger once a few more have arrived
+     *
+     * @param triggerNanos       Elapsed realtime of the trigger
+     * @param triggerSensorNanos Time of the trigger in the sensor's time base
+     */
+    private void takeRingBufferPicture(final long triggerNanos, final long triggerSensorNanos) {
+        if (null == mBackgroundHandler || null == mFrameRing) {
+            Toast.makeText(mContext, "Camera not ready, picture dropped", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final FrameRingBuffer ring = mFrameRing;
+        mBackgroundHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                List<FrameRingBuffer.Frame> frames =
+                        ring.acquireAround(triggerSensorNanos, RING_FRAMES_EACH_SIDE);
+                if (frames.isEmpty())
+                    Log.w(TAG, "No new frames buffered for trigger at " + triggerSensorNanos);
+
+                int rotation = (mSensorOrientation + mDeviceRotation) % 360;
+                int orientation = degreesToExifOrientation(rotation);
+                FinishBand band = mFinishBand;
+                int dropped = 0;
+                for (FrameRingBuffer.Frame frame : frames) {
+                    long timeNanos = mSensorClock.toWallNanos(frame.timestamp);
+                    CapturePipeline.Job job = new CapturePipeline.Job(timeNanos, triggerNanos,
+                            orientation, new File(getExternalFilesDir(null), ImageName.format(timeNanos)));
+                    job.frame = frame;
+                    job.ring = ring;
+                    setExposure(job);
+                    if (!band.isFull())
+                        job.crop = band.crop(frame.width, frame.height, rotation);
+                    job.grabbedNanos = SystemClock.elapsedRealtimeNanos();
+                    if (!mCapturePipeline.submit(job)) {
+                        // Never wait on the camera thread, the frame goes back to the ring
+                        ring.release(frame);
+                        dropped++;
+                    }
                 }
+                if (dropped > 0)
+                    Log.w(TAG, "Capture pipeline full or stopped, dropped " + dropped + " of "
+                            + frames.size() + " frames for trigger at " + triggerSensorNanos);
             }
+        }, RING_POST_TRIGGER_MS);
+    }
+
+    /**
+     * Converts a clockwise rotation into the matching EXIF orientation tag
+     */
+    private static int degreesToExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
         }
+    }
 
-        Toast.makeText(mContext, String.format(Locale.US, "Time: %d", System.currentTimeMillis() - time), Toast.LENGTH_SHORT).show();
+    /**
+     * Converts an EXIF orientation tag into the clockwise rotation it stands for
+     */
+    private static int exifOrientationToDegrees(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
     }
 
+    /**
+     * Reports how long each stage took, the catalog has already handed the picture to the service
+     */
+    private final CapturePipeline.Listener mPipelineListener = new CapturePipeline.Listener() {
+
+        @Override
+        public void onImageSaved(final CapturePipeline.Job job) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(mContext, String.format(Locale.US,
+                            "Time: %d (grab %d, queue %d, encode %d, write %d)",
+                            job.totalMillis(), job.grabMillis(), job.queueMillis(),
+                            job.encodeMillis(), job.writeMillis()), Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+
+        @Override
+        public void onCaptureFailed(CapturePipeline.Job job, IOException e) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(mContext, "Failed to save picture", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
+
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         SocketService.MyBinder b = (SocketService.MyBinder) binder;
@@ -784,7 +1300,115 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
     }
 
     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
-        spinnerPositionToZoomFactor(pos);
+        switch (parent.getId()) {
+            case R.id.capture_mode_spinner:
+                spinnerPositionToCaptureMode(pos);
+                break;
+            case R.id.finish_band_spinner:
+                spinnerPositionToFinishBand(pos);
+                break;
+            case R.id.coalesce_spinner:
+                spinnerPositionToCoalesceWindow(pos);
+                break;
+            case R.id.zoom_spinner:
+            default:
+                spinnerPositionToZoomFactor(pos);
+        }
+    }
+
+    public void spinnerPositionToCaptureMode(int pos) {
+        switch(pos) {
+            case 1:
+                // Single hardware JPEG
+                mCaptureMode = CAPTURE_MODE_STILL;
+                mBurstLength = 1;
+                break;
+            case 2:
+                // Burst of 3
+                mCaptureMode = CAPTURE_MODE_STILL;
+                mBurstLength = 3;
+                break;
+            case 3:
+                // Burst of 5, one less than the ImageReader can hold
+                mCaptureMode = CAPTURE_MODE_STILL;
+                mBurstLength = 5;
+                break;
+            case 4:
+                // Frames around the trigger from the ring buffer
+                mCaptureMode = CAPTURE_MODE_RING;
+                break;
+            case 0:
+            default:
+                // Grab the preview
+                mCaptureMode = CAPTURE_MODE_PREVIEW;
+        }
+        updateRingBufferTarget();
+    }
+
+    /**
+     * Adds or removes the ring buffer from the repeating preview request to match the capture mode
+     */
+    private void updateRingBufferTarget() {
+        if (mCaptureSession == null || mPreviewRequestBuilder == null || mYuvReader == null)
+            return;
+
+        if (mCaptureMode == CAPTURE_MODE_RING)
+            mPreviewRequestBuilder.addTarget(mYuvReader.getSurface());
+        else
+            mPreviewRequestBuilder.removeTarget(mYuvReader.getSurface());
+
+        try {
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void spinnerPositionToCoalesceWindow(int pos) {
+        long windowMillis;
+        switch(pos) {
+            case 1:
+                windowMillis = 10;
+                break;
+            case 2:
+                // Covers most contact bounce
+                windowMillis = 25;
+                break;
+            case 3:
+                windowMillis = 50;
+                break;
+            case 4:
+                windowMillis = 100;
+                break;
+            case 0:
+            default:
+                // Every trigger gets its own capture
+                windowMillis = 0;
+        }
+        mTriggerCoalescer.setWindow(windowMillis * 1000000);
+    }
+
+    public void spinnerPositionToFinishBand(int pos) {
+        switch(pos) {
+            case 1:
+                // Middle three quarters
+                mFinishBand = FinishBand.centred(0.75f);
+                break;
+            case 2:
+                // Middle half
+                mFinishBand = FinishBand.centred(0.5f);
+                break;
+            case 3:
+                // Middle third
+                mFinishBand = FinishBand.centred(1f / 3);
+                break;
+            case 0:
+            default:
+                // Keep the whole picture
+                mFinishBand = FinishBand.FULL;
+        }
     }
 
     public void spinnerPositionToZoomFactor(int pos) {
@@ -826,6 +1450,37 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
         }
     }
 
+    /**
+     * A trigger in still capture mode, waiting on its burst to arrive
+     */
+    private static class StillTrigger {
+        final long triggerNanos;
+        int remaining;
+
+        StillTrigger(long triggerNanos, int burstLength) {
+            this.triggerNanos = triggerNanos;
+            this.remaining = burstLength;
+        }
+    }
+
+    /**
+     * Picks the largest YUV size that fits in the preview limits and matches the aspect ratio
+     * of the stills, falling back to the smallest size offered.
+     */
+    private static Size chooseRingBufferSize(Size[] choices, Size aspectRatio) {
+        List<Size> fits = new ArrayList<>();
+        for (Size option : choices) {
+            if (option.getWidth() <= MAX_PREVIEW_WIDTH && option.getHeight() <= MAX_PREVIEW_HEIGHT &&
+                    (long) option.getWidth() * aspectRatio.getHeight() ==
+                            (long) option.getHeight() * aspectRatio.getWidth()) {
+                fits.add(option);
+            }
+        }
+        if (fits.size() > 0)
+            return Collections.max(fits, new CompareSizesByArea());
+        return Collections.min(Arrays.asList(choices), new CompareSizesByArea());
+    }
+
     /**
      * Compares two {@code Size}s based on their areas.
      */
@@ -852,7 +1507,7 @@ public class CameraActivity extends Activity implements View.OnClickListener, Ad
             case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
             case KeyEvent.KEYCODE_MEDIA_STEP_BACKWARD:
             case KeyEvent.KEYCODE_CAMERA:
-                takePicture();
+                onTrigger(keyEvent);
                 return true;
 
             default:
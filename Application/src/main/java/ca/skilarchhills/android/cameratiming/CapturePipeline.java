@@ -0,0 +1,906 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded producer/consumer pipeline that moves JPEG encoding, EXIF tagging and
+ * persistence off the UI thread.
+ *
+ * The key handler only stamps the time and grabs the frame, then hands it to
+ * {@link #submit(Job)}.  One thread encodes and a second one writes, so a slow
+ * flash write doesn't hold up the next encode.  Both hand-offs are bounded queues,
+ * so when the photo eye outruns the pipeline new frames are dropped instead of
+ * piling up full size bitmaps in memory.  Submitting never blocks, the UI and camera
+ * threads that grab frames can't afford to wait on the encoder.
+ *
+ * Alongside every picture the encoder makes a small thumbnail, which the writer saves
+ * under {@link ImageName#THUMBNAIL_DIR} so PCs can skim a finish before fetching the
+ * full images they need.
+ *
+ * JPEG quality, and the size of preview grabs, come from a {@link QualityController} that
+ * backs off while the PCs are behind.
+ *
+ * The writer puts an EXIF segment with the orientation, capture time and catalog index
+ * in front of the encoded bytes as they go out, so each picture is written exactly once.
+ *
+ * Pictures are saved as files of their own or, when enabled, appended to the catalog's
+ * {@link SegmentStore}.
+ *
+ * Once a picture is safely on disk the writer adds it to the {@link ImageCatalog},
+ * which is what makes it visible to the PCs.  Depending on the durability mode it is first
+ * synced to storage on its own, or together with the rest of a burst.
+ *
+ * Bitmaps and encoded bytes come from a {@link BitmapPool} and a {@link BufferPool} and
+ * go back once written, so after the first few triggers capture allocates nothing large.
+ */
+class CapturePipeline {
+    private static final String TAG = "CameraTimingPipeline";
+
+    /**
+     * Number of frames that may wait in front of each stage
+     */
+    static final int DEFAULT_CAPACITY = 4;
+
+    // Longest side of a thumbnail in pixels, and its JPEG quality
+    private static final int THUMBNAIL_SIZE = 320;
+    private static final int THUMBNAIL_QUALITY = 70;
+
+    // Most memory kept in idle pooled bitmaps and buffers, enough for a full queue of
+    // preview grabs at 1080p
+    private static final long MAX_POOLED_BITMAP_BYTES = 48L * 1024 * 1024;
+    private static final long MAX_POOLED_BUFFER_BYTES = 16L * 1024 * 1024;
+
+    // Pictures between logging the pool counters
+    private static final int POOL_LOG_INTERVAL = 100;
+
+    /**
+     * Pictures are published as soon as they're written, a crash can lose the last few
+     */
+    static final int DURABILITY_NONE = 0;
+
+    /**
+     * Every picture is synced to storage on its own before it's published
+     */
+    static final int DURABILITY_SYNC = 1;
+
+    /**
+     * Pictures waiting to be written together are published as a group, behind one sync of
+     * the catalog and, when they're stored, one of the segment store.  Pictures saved as
+     * files still need a sync each, issued once the whole group is written.
+     */
+    static final int DURABILITY_GROUP = 2;
+
+    // Most pictures synced as one group
+    private static final int MAX_GROUP = 16;
+
+    // Room for the EXIF segment when caching a picture, ours are well under this and a
+    // picture that outgrows it just isn't cached
+    private static final int CACHE_HEADROOM = 4096;
+
+    /**
+     * Callbacks, always run on the writer thread
+     */
+    interface Listener {
+        void onImageSaved(Job job);
+        void onCaptureFailed(Job job, IOException e);
+    }
+
+    /**
+     * A single triggered frame as it travels through the pipeline.  Either {@link #bitmap}
+     * or {@link #frame} is set and gets encoded, or {@link #jpeg} already holds hardware
+     * encoded bytes that go straight to disk.  The bitmap and byte arrays belong to the
+     * pipeline's pools.
+     */
+    static class Job {
+        /**
+         * Orientation value for JPEGs whose orientation the camera already took care of
+         */
+        static final int KEEP_ORIENTATION = -1;
+
+        final long timeNanos;
+        final int orientation;
+        final File file;
+        Bitmap bitmap;
+        FrameRingBuffer.Frame frame;
+        FrameRingBuffer ring;
+        byte[] jpeg;
+        int jpegLength;
+        byte[] thumbnail;
+        int thumbnailLength;
+
+        // Part of the bitmap or frame to keep, null for all of it
+        Rect crop;
+
+        // Exposure settings for the EXIF segment, 0 where unknown
+        long exposureNanos;
+        int iso;
+        float focalLength;
+
+        // Where the writer put the picture and thumbnail until they're published
+        SegmentStore.Output stored;
+        File tempFile;
+        FileOutputStream output;
+        File thumbnailTempFile;
+        FileOutputStream thumbnailOutput;
+        int size;
+        int thumbnailSize;
+        int checksum;
+        ImageCache.Output cached;
+        ImageCache.Output cachedThumbnail;
+
+        // Position in the catalog, set once the picture has been saved
+        int index = -1;
+
+        // Stage timestamps, all from SystemClock.elapsedRealtimeNanos()
+        final long triggerNanos;
+        long grabbedNanos;
+        long encodeStartNanos;
+        long encodedNanos;
+        long writtenNanos;
+
+        Job(long timeNanos, long triggerNanos, int orientation, File file) {
+            this.timeNanos = timeNanos;
+            this.triggerNanos = triggerNanos;
+            this.orientation = orientation;
+            this.file = file;
+        }
+
+        long grabMillis() {
+            return (grabbedNanos - triggerNanos) / 1000000;
+        }
+
+        long queueMillis() {
+            return (encodeStartNanos - grabbedNanos) / 1000000;
+        }
+
+        long encodeMillis() {
+            return (encodedNanos - encodeStartNanos) / 1000000;
+        }
+
+        long writeMillis() {
+            return (writtenNanos - encodedNanos) / 1000000;
+        }
+
+        long totalMillis() {
+            return (writtenNanos - triggerNanos) / 1000000;
+        }
+    }
+
+    /**
+     * Marks the end of the stream for the worker threads
+     */
+    private static final Job POISON = new Job(0, 0, 0, null);
+
+    private final ImageCatalog catalog;
+    private final QualityController controller;
+    private final Listener listener;
+    private final BlockingQueue<Job> encodeQueue;
+    private final BlockingQueue<Job> writeQueue;
+    private final BitmapPool bitmaps = new BitmapPool(MAX_POOLED_BITMAP_BYTES);
+    private final BufferPool buffers = new BufferPool(MAX_POOLED_BUFFER_BYTES);
+    private final int capacity;
+    private volatile Thread encoderThread;
+    private Thread writerThread;
+    private Thread stoppedEncoder;
+    private Thread stoppedWriter;
+    private volatile boolean useStore;
+    private volatile int durability = DURABILITY_NONE;
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    CapturePipeline(int capacity, ImageCatalog catalog, QualityController controller,
+                    Listener listener) {
+        this.catalog = catalog;
+        this.controller = controller;
+        this.listener = listener;
+        this.capacity = capacity;
+        // One spare slot, kept for the end of stream marker
+        encodeQueue = new ArrayBlockingQueue<>(capacity + 1);
+        writeQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Where grabbed frames should be drawn, hand them over in {@link Job#bitmap}
+     */
+    BitmapPool getBitmaps() {
+        return bitmaps;
+    }
+
+    /**
+     * Where hardware JPEGs should be copied, hand them over in {@link Job#jpeg}
+     */
+    BufferPool getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Whether new pictures go into the catalog's {@link SegmentStore} rather than files of
+     * their own.  Pictures already saved stay where they are.
+     */
+    void setUseStore(boolean useStore) {
+        this.useStore = useStore;
+    }
+
+    /**
+     * How hard to make sure pictures survive a crash before they're published, one of
+     * {@link #DURABILITY_NONE}, {@link #DURABILITY_SYNC} or {@link #DURABILITY_GROUP}
+     */
+    void setDurability(int durability) {
+        this.durability = durability;
+        catalog.setSync(durability != DURABILITY_NONE);
+    }
+
+    /**
+     * Starts the worker threads.  Threads left finishing by a {@link #stop()} are waited on
+     * by the new ones, so pictures still go out in order.
+     */
+    synchronized void start() {
+        if (encoderThread != null)
+            return;
+
+        final Thread previousEncoder = stoppedEncoder;
+        final Thread previousWriter = stoppedWriter;
+        encoderThread = new Thread(new Runnable() {
+            public void run() {
+                if (awaitStopped(previousEncoder))
+                    encodeLoop();
+            }
+        }, "CaptureEncoder");
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                if (awaitStopped(previousWriter))
+                    writeLoop();
+            }
+        }, "CaptureWriter");
+        encoderThread.start();
+        writerThread.start();
+    }
+
+    /**
+     * Stops taking new frames and returns straight away.  The worker threads let everything
+     * already submitted reach the disk, then stop on their own.
+     */
+    synchronized void stop() {
+        if (encoderThread == null)
+            return;
+
+        // The spare slot is free unless a submit raced us, then the encoder soon makes room
+        if (!encodeQueue.offer(POISON)) {
+            try {
+                encodeQueue.put(POISON);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        stoppedEncoder = encoderThread;
+        stoppedWriter = writerThread;
+        encoderThread = null;
+        writerThread = null;
+    }
+
+    /**
+     * Waits for a worker from before the last stop to finish its queue
+     * @return false if interrupted
+     */
+    private static boolean awaitStopped(Thread previous) {
+        if (previous == null)
+            return true;
+
+        try {
+            previous.join();
+            return true;
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for " + previous.getName());
+            return false;
+        }
+    }
+
+    /**
+     * Queues a grabbed frame for encoding without waiting.  A job that isn't taken still
+     * belongs to the caller, which has to hand its bitmap, frame or buffer back.
+     * @return false if the pipeline is not running or the encoder is too far behind to
+     *         take another frame, see {@link #isRunning()}
+     */
+    boolean submit(Job job) {
+        if (encoderThread == null)
+            return false;
+
+        if (encodeQueue.size() >= capacity || !encodeQueue.offer(job)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the worker threads are running, so a refused job was dropped for a full queue
+     */
+    boolean isRunning() {
+        return encoderThread != null;
+    }
+
+    /**
+     * Frames refused so far because the encoder was full behind
+     */
+    int getDropped() {
+        return dropped.get();
+    }
+
+    private void encodeLoop() {
+        BufferPool.Output output = buffers.new Output(1024 * 1024);
+        BufferPool.Output thumbnailOutput = buffers.new Output(32 * 1024);
+        Scaler scaler = new Scaler();
+        try {
+            while (true) {
+                Job job = encodeQueue.take();
+                if (job == POISON) {
+                    writeQueue.put(POISON);
+                    return;
+                }
+
+                job.encodeStartNanos = SystemClock.elapsedRealtimeNanos();
+
+                // Back off when the PCs are falling behind
+                try {
+                    controller.update();
+                } catch (IOException e) {
+                    // Keep the current quality, the writer reports the catalog failing
+                    Log.e(TAG, "Can't read the catalog: " + e.getMessage());
+                }
+                int quality = controller.getQuality();
+
+                if (job.bitmap != null) {
+                    // Crop and scale in a single draw into a pooled bitmap
+                    Bitmap source = job.bitmap;
+                    Rect from = job.crop != null ? job.crop :
+                            new Rect(0, 0, source.getWidth(), source.getHeight());
+                    float scale = Math.min(1, controller.getScale());
+                    Bitmap picture = source;
+                    if (job.crop != null || scale < 1) {
+                        picture = scaler.draw(source, from, Math.round(from.width() * scale),
+                                Math.round(from.height() * scale));
+                        bitmaps.release(source);
+                    }
+                    job.bitmap = null;
+
+                    picture.compress(Bitmap.CompressFormat.JPEG, quality, output);
+                    job.jpegLength = output.size();
+                    job.jpeg = output.take();
+                    encodeThumbnail(job, picture, scaler, thumbnailOutput);
+                    bitmaps.release(picture);
+                } else if (job.frame != null) {
+                    FrameRingBuffer.Frame frame = job.frame;
+                    Rect crop = job.crop != null ? job.crop : new Rect(0, 0, frame.width, frame.height);
+                    new YuvImage(frame.nv21, ImageFormat.NV21, frame.width, frame.height, null)
+                            .compressToJpeg(crop, quality, output);
+                    job.ring.release(frame);
+                    job.frame = null;
+                    job.jpegLength = output.size();
+                    job.jpeg = output.take();
+                }
+                if (job.thumbnail == null && job.jpeg != null)
+                    encodeThumbnail(job, scaler, thumbnailOutput);
+                job.encodedNanos = SystemClock.elapsedRealtimeNanos();
+                controller.onEncoded(job.encodedNanos - job.encodeStartNanos, job.jpegLength);
+
+                writeQueue.put(job);
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Encoder interrupted");
+        } finally {
+            output.discard();
+            thumbnailOutput.discard();
+        }
+    }
+
+    /**
+     * Draws part of a bitmap into a pooled one of a given size, filtered.  Reuses its
+     * canvas, so belongs to one thread.
+     */
+    private class Scaler {
+        private final Canvas canvas = new Canvas();
+        private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Rect to = new Rect();
+
+        Bitmap draw(Bitmap source, Rect from, int width, int height) {
+            Bitmap target = bitmaps.acquire(Math.max(1, width), Math.max(1, height));
+            to.set(0, 0, target.getWidth(), target.getHeight());
+            canvas.setBitmap(target);
+            canvas.drawBitmap(source, from, to, paint);
+            canvas.setBitmap(null);
+            return target;
+        }
+    }
+
+    /**
+     * Scales a bitmap down to thumbnail size and encodes it into the job
+     */
+    private void encodeThumbnail(Job job, Bitmap source, Scaler scaler, BufferPool.Output output) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        float scale = (float) THUMBNAIL_SIZE / Math.max(width, height);
+        Bitmap thumbnail = source;
+        if (scale < 1)
+            thumbnail = scaler.draw(source, new Rect(0, 0, width, height),
+                    Math.round(width * scale), Math.round(height * scale));
+
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+        job.thumbnailLength = output.size();
+        job.thumbnail = output.take();
+        if (thumbnail != source)
+            bitmaps.release(thumbnail);
+    }
+
+    /**
+     * Thumbnail from the job's encoded JPEG.  The decoder subsamples while decoding, into a
+     * pooled bitmap, so this never holds the full size picture in memory.  Leaves the job
+     * without a thumbnail if the JPEG couldn't be decoded.
+     */
+    private void encodeThumbnail(Job job, Scaler scaler, BufferPool.Output output) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(job.jpeg, 0, job.jpegLength, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return;
+
+        int sample = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sample * 2) >= THUMBNAIL_SIZE)
+            sample *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        options.inMutable = true;
+        options.inBitmap = bitmaps.acquire((options.outWidth + sample - 1) / sample,
+                (options.outHeight + sample - 1) / sample);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(job.jpeg, 0, job.jpegLength, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder didn't like the pooled bitmap, let it allocate
+            bitmaps.release(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(job.jpeg, 0, job.jpegLength, options);
+        }
+        if (bitmap != options.inBitmap)
+            bitmaps.release(options.inBitmap);
+        if (bitmap == null)
+            return;
+
+        encodeThumbnail(job, bitmap, scaler, output);
+        bitmaps.release(bitmap);
+    }
+
+    private void writeLoop() {
+        ExifWriter exif = new ExifWriter(Build.MANUFACTURER, Build.MODEL, TimeZone.getDefault());
+        CRC32 crc = new CRC32();
+        ArrayList<Job> group = new ArrayList<>(MAX_GROUP);
+        int saved = 0;
+        try {
+            boolean running = true;
+            while (running) {
+                group.add(writeQueue.take());
+                if (durability == DURABILITY_GROUP)
+                    writeQueue.drainTo(group, MAX_GROUP - 1);
+                int poison = group.indexOf(POISON);
+                if (poison >= 0) {
+                    group.subList(poison, group.size()).clear();
+                    running = false;
+                }
+
+                int before = saved;
+                saved += writeGroup(group, exif, crc);
+                if (saved / POOL_LOG_INTERVAL != before / POOL_LOG_INTERVAL)
+                    logPools();
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Writer interrupted");
+        }
+    }
+
+    /**
+     * Writes a group of pictures, syncs them if asked to and then publishes them in one go,
+     * so a burst costs one sync of the catalog rather than one per picture.  Files are
+     * written under a temporary name and only renamed once synced, so a crash never leaves
+     * a torn picture under a real name, and nothing is published that isn't safely on
+     * storage.
+     * @return Pictures saved
+     */
+    private int writeGroup(List<Job> group, ExifWriter exif, CRC32 crc) {
+        boolean sync = durability != DURABILITY_NONE;
+        int saved = 0;
+        long syncStart = 0;
+
+        // Single writer, so the pictures land at the current end of the catalog
+        int index;
+        try {
+            index = catalog.nextIndex();
+        } catch (IOException e) {
+            for (Job job : group) {
+                failed(job, e);
+                releaseBuffers(job);
+            }
+            return 0;
+        }
+
+        catalog.beginBatch();
+        try {
+            for (Job job : group) {
+                try {
+                    write(job, exif, crc, index);
+                    index++;
+                } catch (IOException e) {
+                    failed(job, e);
+                } finally {
+                    releaseBuffers(job);
+                }
+            }
+
+            syncStart = SystemClock.elapsedRealtimeNanos();
+            if (sync)
+                syncGroup(group);
+            // The pictures were numbered in order as they were written, so once one fails to
+            // publish the rest would land one index short of the number in their EXIF
+            IOException publishFailure = null;
+            for (Job job : group) {
+                if (job.size == 0)
+                    continue;
+                if (publishFailure != null) {
+                    failed(job, new IOException("An earlier picture in the group failed",
+                            publishFailure));
+                    continue;
+                }
+                try {
+                    publish(job);
+                    saved++;
+                } catch (IOException e) {
+                    unpublish(job);
+                    failed(job, e);
+                    publishFailure = e;
+                }
+            }
+        } finally {
+            try {
+                catalog.commitBatch();
+                for (Job job : group) {
+                    if (job.index >= 0)
+                        kept(job);
+                }
+            } catch (IOException e) {
+                // The catalog dropped the whole group, it mustn't be reported saved
+                for (Job job : group) {
+                    if (job.index >= 0) {
+                        unpublish(job);
+                        failed(job, e);
+                    }
+                }
+                saved = 0;
+            }
+        }
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (sync && saved > 0)
+            Metrics.SYNC.record(now - syncStart);
+        for (Job job : group) {
+            if (job.index < 0)
+                continue;
+            job.writtenNanos = now;
+            Metrics.GRAB.record(job.grabbedNanos - job.triggerNanos);
+            Metrics.QUEUE.record(job.encodeStartNanos - job.grabbedNanos);
+            Metrics.ENCODE.record(job.encodedNanos - job.encodeStartNanos);
+            Metrics.TOTAL.record(job.writtenNanos - job.triggerNanos);
+            listener.onImageSaved(job);
+        }
+        return saved;
+    }
+
+    private void releaseBuffers(Job job) {
+        buffers.release(job.jpeg);
+        job.jpeg = null;
+        buffers.release(job.thumbnail);
+        job.thumbnail = null;
+    }
+
+    private void failed(Job job, IOException e) {
+        e.printStackTrace();
+        job.size = 0;
+        discard(job);
+        listener.onCaptureFailed(job, e);
+    }
+
+    /**
+     * Writes a picture, and its thumbnail, ready to be published
+     * @param index Index it will have in the catalog
+     */
+    private void write(Job job, ExifWriter exif, CRC32 crc, int index) throws IOException {
+        if (job.jpeg == null)
+            throw new IOException("Nothing was encoded");
+        crc.reset();
+        if (useStore) {
+            writeStored(job, exif, crc, index);
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        job.tempFile = new File(job.file.getPath() + ImageName.TEMP_SUFFIX);
+        job.output = new FileOutputStream(job.tempFile);
+        job.cached = catalog.getCache().record(job.output, job.jpegLength + CACHE_HEADROOM);
+        job.size = writePicture(job, exif, crc, index, job.cached);
+        job.checksum = (int) crc.getValue();
+        long written = SystemClock.elapsedRealtimeNanos();
+        Metrics.DISK.record(written - start);
+
+        if (job.thumbnail != null) {
+            try {
+                File thumbnail = ImageName.thumbnailFor(job.file);
+                File dir = thumbnail.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Can't create " + dir);
+                job.thumbnailTempFile = new File(thumbnail.getPath() + ImageName.TEMP_SUFFIX);
+                job.thumbnailOutput = new FileOutputStream(job.thumbnailTempFile);
+                job.cachedThumbnail = catalog.getCache().record(job.thumbnailOutput,
+                        job.thumbnailLength + CACHE_HEADROOM);
+                writeThumbnail(job, exif, index, job.cachedThumbnail);
+            } catch (IOException e) {
+                // The PC falls back to the full picture
+                e.printStackTrace();
+                discardThumbnail(job);
+            }
+        }
+        Metrics.EXIF.record(SystemClock.elapsedRealtimeNanos() - written);
+    }
+
+    /**
+     * Appends the picture, with its thumbnail straight after it, to the segment store
+     * instead of files of their own
+     */
+    private void writeStored(Job job, ExifWriter exif, CRC32 crc, int index) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        SegmentStore.Output output = catalog.getStore().append(
+                job.jpegLength + job.thumbnailLength + 2L * ExifWriter.MAX_HEADER_SIZE);
+        job.stored = output;
+        job.cached = catalog.getCache().record(output, job.jpegLength + CACHE_HEADROOM);
+        job.size = writePicture(job, exif, crc, index, job.cached);
+        job.checksum = (int) crc.getValue();
+        long written = SystemClock.elapsedRealtimeNanos();
+        Metrics.DISK.record(written - start);
+
+        if (job.thumbnail != null) {
+            job.cachedThumbnail = catalog.getCache().record(output,
+                    job.thumbnailLength + CACHE_HEADROOM);
+            job.thumbnailSize = writeThumbnail(job, exif, index, job.cachedThumbnail);
+        }
+        output.commit();
+        Metrics.EXIF.record(SystemClock.elapsedRealtimeNanos() - written);
+    }
+
+    /**
+     * Flushes a written group to storage.  Stored pictures share a single sync of the
+     * segment store.  Files can't share one, each is synced in turn, but only once the whole
+     * group is written, so the syncs don't hold up the writes between them.  Like a picture
+     * that fails to publish, one that fails to sync takes the rest of the group with it.
+     */
+    private void syncGroup(List<Job> group) {
+        IOException storeFailure = null;
+        for (Job job : group) {
+            if (job.size != 0 && job.stored != null) {
+                try {
+                    catalog.getStore().sync();
+                } catch (IOException e) {
+                    storeFailure = e;
+                }
+                break;
+            }
+        }
+
+        IOException failure = null;
+        for (Job job : group) {
+            if (job.size == 0)
+                continue;
+            if (failure != null) {
+                failed(job, new IOException("An earlier picture in the group failed", failure));
+                continue;
+            }
+            try {
+                if (job.stored == null)
+                    syncFiles(job);
+                else if (storeFailure != null)
+                    throw storeFailure;
+            } catch (IOException e) {
+                failed(job, e);
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Syncs a picture's file, and its thumbnail's if that can be kept
+     */
+    private static void syncFiles(Job job) throws IOException {
+        if (job.thumbnailOutput != null) {
+            try {
+                job.thumbnailOutput.getFD().sync();
+            } catch (IOException e) {
+                // The PC falls back to the full picture
+                e.printStackTrace();
+                discardThumbnail(job);
+            }
+        }
+        job.output.getFD().sync();
+    }
+
+    /**
+     * Moves a written, and if asked to synced, picture to its real name and adds it to the
+     * catalog, which publishes it once the group is done
+     */
+    private void publish(Job job) throws IOException {
+        if (job.stored != null) {
+            job.index = catalog.appendStored(job.timeNanos, job.stored.getLocation(), job.size,
+                    job.thumbnailSize, job.checksum);
+            return;
+        }
+
+        if (job.thumbnailOutput != null) {
+            try {
+                job.thumbnailOutput.close();
+                job.thumbnailOutput = null;
+                rename(job.thumbnailTempFile, ImageName.thumbnailFor(job.file));
+            } catch (IOException e) {
+                e.printStackTrace();
+                discardThumbnail(job);
+            }
+        }
+
+        job.output.close();
+        job.output = null;
+        rename(job.tempFile, job.file);
+        job.tempFile = null;
+        job.index = catalog.append(job.timeNanos, job.size, job.checksum);
+    }
+
+    /**
+     * Takes back a picture the catalog dropped, so nothing is left under its real name
+     */
+    private static void unpublish(Job job) {
+        job.index = -1;
+        if (job.stored == null) {
+            job.file.delete();
+            ImageName.thumbnailFor(job.file).delete();
+        }
+    }
+
+    /**
+     * Keeps a picture the catalog has published, from then on its cached copy is served
+     */
+    private static void kept(Job job) {
+        job.stored = null;
+        job.cached.commit(job.index, false);
+        job.cached = null;
+        if (job.cachedThumbnail != null) {
+            job.cachedThumbnail.commit(job.index, true);
+            job.cachedThumbnail = null;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to))
+            throw new IOException("Can't rename " + from + " to " + to);
+    }
+
+    /**
+     * Closes and deletes whatever a failed picture left behind, giving its space in the
+     * segment store back
+     */
+    private static void discard(Job job) {
+        discardThumbnail(job);
+        if (job.cached != null) {
+            job.cached.discard();
+            job.cached = null;
+        }
+        if (job.stored != null) {
+            job.stored.abort();
+            job.stored = null;
+        }
+        if (job.output != null) {
+            try {
+                job.output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            job.output = null;
+        }
+        if (job.tempFile != null)
+            job.tempFile.delete();
+    }
+
+    private static void discardThumbnail(Job job) {
+        if (job.cachedThumbnail != null) {
+            job.cachedThumbnail.discard();
+            job.cachedThumbnail = null;
+        }
+        if (job.thumbnailOutput != null) {
+            try {
+                job.thumbnailOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            job.thumbnailOutput = null;
+        }
+        if (job.thumbnailTempFile != null)
+            job.thumbnailTempFile.delete();
+    }
+
+    /**
+     * Writes the picture with an EXIF segment, unless the camera already wrote one
+     * @return Bytes written
+     */
+    private static int writePicture(Job job, ExifWriter exif, CRC32 crc, int index,
+                                    OutputStream output) throws IOException {
+        if (job.orientation == Job.KEEP_ORIENTATION) {
+            // Straight from the camera
+            output.write(job.jpeg, 0, job.jpegLength);
+            crc.update(job.jpeg, 0, job.jpegLength);
+            return job.jpegLength;
+        }
+        prepareExif(exif, job, index);
+        exif.setOrientation(job.orientation);
+        return exif.write(output, job.jpeg, job.jpegLength, crc);
+    }
+
+    /**
+     * Writes the thumbnail with the same orientation tag as its picture
+     * @return Bytes written
+     */
+    private static int writeThumbnail(Job job, ExifWriter exif, int index, OutputStream output)
+            throws IOException {
+        int orientation = job.orientation;
+        if (orientation == Job.KEEP_ORIENTATION) {
+            // Whatever the camera put in the full picture
+            orientation = ExifWriter.readOrientation(job.jpeg, job.jpegLength);
+        }
+
+        prepareExif(exif, job, index);
+        exif.setOrientation(orientation);
+        return exif.write(output, job.thumbnail, job.thumbnailLength, null);
+    }
+
+    private static void prepareExif(ExifWriter exif, Job job, int index) {
+        exif.clear();
+        exif.setTime(job.timeNanos);
+        exif.setImageNumber(index);
+        exif.setExposure(job.exposureNanos, job.iso, job.focalLength);
+    }
+
+    /**
+     * Logs how much the pools have had to allocate, which should stop growing once capture
+     * has warmed up
+     */
+    private void logPools() {
+        Log.d(TAG, String.format(Locale.US,
+                "Pools: bitmaps %d allocated (%d KB), %d reused; buffers %d allocated (%d KB), %d reused; %d frames dropped",
+                bitmaps.getAllocations(), bitmaps.getAllocatedBytes() / 1024, bitmaps.getReuses(),
+                buffers.getAllocations(), buffers.getAllocatedBytes() / 1024, buffers.getReuses(),
+                dropped.get()));
+    }
+}
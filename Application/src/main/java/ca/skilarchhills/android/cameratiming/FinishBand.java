@@ -0,0 +1,60 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.graphics.Rect;
+
+/**
+ * The part of the picture around the finish line worth keeping, as a horizontal band right
+ * across the upright picture.  Pictures are cropped to it before they are encoded, so a
+ * narrow band means less to encode, store and send for every trigger.  Stills encoded by
+ * the camera are left whole, a crop region is only ever a centred zoom to the camera.
+ */
+final class FinishBand {
+    /**
+     * Keeps the whole picture
+     */
+    static final FinishBand FULL = new FinishBand(0, 1);
+
+    // Edges of the band as fractions of the upright picture's height
+    final float top;
+    final float bottom;
+
+    FinishBand(float top, float bottom) {
+        this.top = top;
+        this.bottom = bottom;
+    }
+
+    /**
+     * A band of the given height centred vertically
+     * @param fraction Height of the band as a fraction of the picture's height
+     */
+    static FinishBand centred(float fraction) {
+        return new FinishBand((1 - fraction) / 2, (1 + fraction) / 2);
+    }
+
+    boolean isFull() {
+        return top <= 0 && bottom >= 1;
+    }
+
+    /**
+     * The band in the pixels of a picture as it is stored, before any rotation.  Edges are
+     * kept even so the rectangle also lines up with subsampled chroma.
+     * @param degrees Clockwise rotation that makes the stored picture upright
+     */
+    Rect crop(int width, int height, int degrees) {
+        switch (degrees) {
+            case 90:
+                // The left edge of the stored picture is the top of the upright one
+                return new Rect(even(top * width), 0, even(bottom * width), height);
+            case 180:
+                return new Rect(0, even((1 - bottom) * height), width, even((1 - top) * height));
+            case 270:
+                return new Rect(even((1 - bottom) * width), 0, even((1 - top) * width), height);
+            default:
+                return new Rect(0, even(top * height), width, even(bottom * height));
+        }
+    }
+
+    private static int even(float value) {
+        return Math.round(value / 2) * 2;
+    }
+}
@@ -0,0 +1,163 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size ring of the most recent preview frames, so a trigger can be matched
+ * against the frame whose sensor timestamp is closest to it rather than whatever
+ * happens to be on screen once the key event is delivered.
+ *
+ * Every slot is a preallocated NV21 buffer that gets overwritten in place, nothing is
+ * allocated per frame.  Frames handed out by {@link #acquireAround(long, int)} are
+ * locked and skipped by the writer until they are released after encoding.
+ */
+class FrameRingBuffer {
+
+    /**
+     * One slot of the ring
+     */
+    static class Frame {
+        final byte[] nv21;
+        final int width;
+        final int height;
+        long timestamp = -1;
+        private int locks;
+
+        private Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            nv21 = new byte[width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8];
+        }
+    }
+
+    private final Frame[] frames;
+    private final int width;
+    private final int height;
+
+    // Scratch rows for de-interleaving chroma, sized on the first frame
+    private byte[] uRow = new byte[0];
+    private byte[] vRow = new byte[0];
+
+    private int next;
+    private long lastPersisted = -1;
+
+    FrameRingBuffer(int slots, int width, int height) {
+        this.width = width;
+        this.height = height;
+        frames = new Frame[slots];
+        for (int i = 0; i < slots; i++)
+            frames[i] = new Frame(width, height);
+    }
+
+    /**
+     * Copies a YUV_420_888 image into the oldest unlocked slot
+     * @return false if every slot is locked and the image was dropped
+     */
+    synchronized boolean put(Image image) {
+        if (image.getWidth() != width || image.getHeight() != height)
+            return false;
+
+        for (int i = 0; i < frames.length; i++) {
+            Frame frame = frames[next];
+            next = (next + 1) % frames.length;
+            if (frame.locks == 0) {
+                copyToNv21(image, frame.nv21);
+                frame.timestamp = image.getTimestamp();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Locks the frame closest to the given sensor timestamp along with up to
+     * eachSide neighbours before and after it.  Frames already handed out by an
+     * earlier call are never returned twice.
+     * @return locked frames in timestamp order, empty if nothing new is buffered
+     */
+    synchronized List<Frame> acquireAround(long sensorTimestamp, int eachSide) {
+        // Sort the slots by timestamp, the ring is small enough for insertion sort
+        Frame[] sorted = new Frame[frames.length];
+        int count = 0;
+        for (Frame frame : frames) {
+            if (frame.timestamp <= lastPersisted)
+                continue;
+            int j = count++;
+            while (j > 0 && sorted[j - 1].timestamp > frame.timestamp) {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = frame;
+        }
+
+        List<Frame> result = new ArrayList<>(2 * eachSide + 1);
+        if (count == 0)
+            return result;
+
+        int closest = 0;
+        for (int i = 1; i < count; i++) {
+            if (Math.abs(sorted[i].timestamp - sensorTimestamp) <
+                    Math.abs(sorted[closest].timestamp - sensorTimestamp))
+                closest = i;
+        }
+
+        int last = Math.min(count - 1, closest + eachSide);
+        for (int i = Math.max(0, closest - eachSide); i <= last; i++) {
+            sorted[i].locks++;
+            result.add(sorted[i]);
+        }
+        lastPersisted = sorted[last].timestamp;
+        return result;
+    }
+
+    /**
+     * Hands a frame from {@link #acquireAround(long, int)} back to the writer
+     */
+    synchronized void release(Frame frame) {
+        frame.locks--;
+    }
+
+    /**
+     * Converts the three planes of a YUV_420_888 image into NV21 (Y, then interleaved VU)
+     */
+    private void copyToNv21(Image image, byte[] out) {
+        Image.Plane[] planes = image.getPlanes();
+
+        // Luma, row by row to drop any row padding
+        ByteBuffer y = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.get(out, offset, width);
+            offset += width;
+        }
+
+        // Chroma, half resolution in both directions
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        if (uRow.length < uvRowStride) {
+            uRow = new byte[uvRowStride];
+            vRow = new byte[uvRowStride];
+        }
+        for (int row = 0; row < height / 2; row++) {
+            // The last row may be shorter than the stride
+            int rowLength = Math.min(uvRowStride, u.capacity() - row * uvRowStride);
+            u.position(row * uvRowStride);
+            u.get(uRow, 0, rowLength);
+            v.position(row * uvRowStride);
+            v.get(vRow, 0, Math.min(rowLength, v.capacity() - row * uvRowStride));
+            for (int col = 0; col < width / 2; col++) {
+                out[offset++] = vRow[col * uvPixelStride];
+                out[offset++] = uRow[col * uvPixelStride];
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ca.skilarchhills.android.cameratiming;
+
+import android.os.SystemClock;
+
+/**
+ * Maps camera sensor timestamps onto wall clock time.
+ *
+ * Sensor timestamps are either elapsedRealtime or CLOCK_MONOTONIC (which is what
+ * {@link System#nanoTime()} reads), depending on SENSOR_INFO_TIMESTAMP_SOURCE.  The
+ * offset to the wall clock is recalibrated from every preview frame: each sample
+ * brackets a {@link System#currentTimeMillis()} read between two sensor clock reads,
+ * giving a lower and upper bound on the offset, and the tightest bounds seen over a
+ * short window are published.  This keeps the error well under a millisecond and
+ * follows the wall clock when it gets adjusted.
+ */
+class SensorClock {
+    /**
+     * Samples per calibration window, about a second of preview
+     */
+    private static final int WINDOW = 30;
+
+    private final boolean realtime;
+
+    // Only touched by the calibrating thread
+    private int samples;
+    private long lowerBound = Long.MIN_VALUE;
+    private long upperBound = Long.MAX_VALUE;
+
+    // Wall clock nanos minus sensor clock nanos
+    private volatile long offset;
+    private volatile boolean calibrated;
+
+    SensorClock(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /**
+     * Current time in the sensor's time base
+     */
+    long now() {
+        return realtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    /**
+     * Takes one calibration sample, cheap enough to call for every frame
+     */
+    synchronized void calibrate() {
+        long before = now();
+        long wallMillis = System.currentTimeMillis();
+        long after = now();
+
+        // The wall clock read happened somewhere in [before, after] and is truncated to millis
+        lowerBound = Math.max(lowerBound, wallMillis * 1000000 - after);
+        upperBound = Math.min(upperBound, (wallMillis + 1) * 1000000 - before);
+
+        if (!calibrated || ++samples >= WINDOW) {
+            offset = lowerBound <= upperBound ? (lowerBound + upperBound) / 2 : lowerBound;
+            calibrated = true;
+            samples = 0;
+            lowerBound = Long.MIN_VALUE;
+            upperBound = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Converts a sensor timestamp to wall clock nanoseconds since the epoch
+     */
+    long toWallNanos(long sensorNanos) {
+        if (!calibrated)
+            calibrate();
+        return sensorNanos + offset;
+    }
+}
@@ -0,0 +1,129 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image send throughput over a loopback socket, the old heap buffer copy against
+ * {@link FileTransfer}.  Every operation sends one 1 MiB file, so the scores read
+ * directly as MiB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileTransferBenchmark {
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    private File file;
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private OutputStream clientStream;
+    private Thread sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Random bytes, like compressed JPEG data
+        file = File.createTempFile("transfer", ".jpg");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sink = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    SocketChannel peer = server.accept();
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                    while (peer.read(buffer) >= 0)
+                        buffer.clear();
+                } catch (IOException e) {
+                    // Benchmark finished and closed the socket
+                }
+            }
+        });
+        sink.start();
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        clientStream = new BufferedOutputStream(client.socket().getOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        sink.join();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * The old SocketService.sendFile(), 4 KiB at a time through the heap
+     */
+    @Benchmark
+    public void streamCopy() throws IOException {
+        byte[] buffer = new byte[4096];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                clientStream.write(buffer, 0, read);
+            clientStream.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public void transferTo() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            FileTransfer.transfer(channel, 0, channel.size(), client);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FileTransferBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
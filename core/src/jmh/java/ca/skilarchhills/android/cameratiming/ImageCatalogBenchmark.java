@@ -0,0 +1,111 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The catalog as the phone uses it: the capture pipeline appending while every connected
+ * PC looks pictures up.  The group runs one appender against three threads of each lookup, so the reader
+ * scores show what an append costs them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageCatalogBenchmark {
+    private static final long BASE_NANOS = 1514764800000000000L;
+
+    // Already in the catalog before the trial, so readers have something to find
+    private static final int PRELOAD = 10000;
+
+    @State(Scope.Group)
+    public static class Catalog {
+        File dir;
+        ImageCatalog catalog;
+        long nextTimestamp;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = File.createTempFile("catalog", "");
+            if (!dir.delete() || !dir.mkdir())
+                throw new IOException("Couldn't create " + dir);
+            catalog = ImageCatalog.get(dir);
+            nextTimestamp = BASE_NANOS;
+            for (int i = 0; i < PRELOAD; i++)
+                append();
+        }
+
+        int append() throws IOException {
+            int index = catalog.append(nextTimestamp, 1024 * 1024, 0);
+            nextTimestamp += 1000;
+            return index;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            catalog.close();
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int append(Catalog state) throws IOException {
+        return state.append();
+    }
+
+    /**
+     * What PC_REQUEST_TIME_RANGE and the PC's lookups do, a timestamp search
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public int find(Catalog state) throws IOException {
+        ImageCatalog catalog = state.catalog;
+        int index = ThreadLocalRandom.current().nextInt(catalog.size());
+        return catalog.find(catalog.getTimestamp(index));
+    }
+
+    /**
+     * What every sent picture does, index to file
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public File getFile(Catalog state) throws IOException {
+        ImageCatalog catalog = state.catalog;
+        return catalog.getFile(ThreadLocalRandom.current().nextInt(catalog.size()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ImageCatalogBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,89 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole phone side of a delivery, catalog to wire, against {@link FakePcClient} over
+ * loopback.  Every operation fetches the full catalog once, so the scores compare the
+ * delivery modes on the same pictures.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackProtocolBenchmark {
+    private static final int IMAGES = 50;
+
+    // Roughly a preview frame and a full resolution still
+    @Param({"200000", "3000000"})
+    public int size;
+
+    private File dir;
+    private LoopbackServer server;
+    private FakePcClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("loopback", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Couldn't create " + dir);
+        server = new LoopbackServer(dir, IMAGES, size);
+        client = new FakePcClient(server.getAddress());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Stop-and-wait, a round trip per picture
+     */
+    @Benchmark
+    public long requestSpecific() throws IOException {
+        for (int i = 0; i < IMAGES; i++)
+            client.request(i);
+        return client.getBytesReceived();
+    }
+
+    /**
+     * One PC_REQUEST_RANGE, a single ACK for the lot
+     */
+    @Benchmark
+    public int requestRange() throws IOException {
+        return client.requestBulk(0, IMAGES - 1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LoopbackProtocolBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,170 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through the PC protocol framing over a loopback socket.
+ *
+ * Run with {@code ./gradlew :core:jmh}, or {@link #main(String[])} from the IDE.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolCodecBenchmark {
+
+    /**
+     * A loopback peer that keeps writing image headers as fast as they are read
+     */
+    @State(Scope.Thread)
+    public static class HeaderStream {
+        ServerSocket server;
+        Socket client;
+        Thread writer;
+        InputStream rawIn;
+        ProtocolCodec codec;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket peer = server.accept();
+                        ProtocolCodec out = new ProtocolCodec(peer.getInputStream(),
+                                new BufferedOutputStream(peer.getOutputStream()));
+                        for (long i = 0; ; i++)
+                            out.writeHeader(1001, i, 1514764800123456789L + i, 3 * 1024 * 1024);
+                    } catch (IOException e) {
+                        // Benchmark finished and closed the socket
+                    }
+                }
+            });
+            writer.start();
+            client = new Socket(server.getInetAddress(), server.getLocalPort());
+            rawIn = new BufferedInputStream(client.getInputStream());
+            codec = new ProtocolCodec(client.getInputStream(), client.getOutputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.close();
+            server.close();
+            writer.join();
+        }
+    }
+
+    /**
+     * A loopback peer that answers every request with an image header, like the phone does
+     */
+    @State(Scope.Thread)
+    public static class RequestReply {
+        ServerSocket server;
+        Socket client;
+        Thread responder;
+        ProtocolCodec codec;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            responder = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket peer = server.accept();
+                        peer.setTcpNoDelay(true);
+                        ProtocolCodec phone = new ProtocolCodec(peer.getInputStream(),
+                                new BufferedOutputStream(peer.getOutputStream()));
+                        for (long i = 0; ; i++) {
+                            phone.readLong();
+                            phone.writeHeader(1001, i, 1514764800123456789L + i, 0);
+                            phone.flush();
+                        }
+                    } catch (IOException e) {
+                        // Benchmark finished and closed the socket
+                    }
+                }
+            });
+            responder.start();
+            client = new Socket(server.getInetAddress(), server.getLocalPort());
+            client.setTcpNoDelay(true);
+            codec = new ProtocolCodec(client.getInputStream(),
+                    new BufferedOutputStream(client.getOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.close();
+            server.close();
+            responder.join();
+        }
+    }
+
+    @Benchmark
+    public long readHeaderCodec(HeaderStream stream) throws IOException {
+        ProtocolCodec codec = stream.codec;
+        return codec.readLong() ^ codec.readLong() ^ codec.readLong() ^ codec.readLong();
+    }
+
+    @Benchmark
+    public long readHeaderLegacy(HeaderStream stream) throws IOException {
+        InputStream in = stream.rawIn;
+        return legacyReadLong(in) ^ legacyReadLong(in) ^ legacyReadLong(in) ^ legacyReadLong(in);
+    }
+
+    @Benchmark
+    public long requestReplyCodec(RequestReply link) throws IOException {
+        ProtocolCodec codec = link.codec;
+        codec.writeLong(2002);
+        codec.flush();
+        return codec.readLong() ^ codec.readLong() ^ codec.readLong() ^ codec.readLong();
+    }
+
+    /**
+     * The old SocketService.readLong(), a fresh array and a read() call per byte
+     */
+    private static long legacyReadLong(InputStream in) throws IOException {
+        byte[] buffer = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            int temp = in.read();
+            if (temp == -1)
+                throw new IOException("Read -1 reading long");
+            buffer[i] = (byte) temp;
+        }
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result <<= 8;
+            result |= (buffer[i] & 0xFF);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ProtocolCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,163 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the large byte arrays pictures are encoded into, so a run of triggers doesn't
+ * keep handing megabyte arrays to the garbage collector.
+ *
+ * Buffers are handed out best fit and come back with {@link #release(byte[])} once the
+ * bytes are on disk.  At most a set number of bytes is kept idle; anything released past
+ * that is left to the collector.  The allocation counters show whether steady state capture
+ * is really allocation free: after warming up they should stop moving.
+ */
+class BufferPool {
+    // Sizes are rounded up to this, so a slightly bigger picture still fits a pooled buffer
+    private static final int GRANULE = 64 * 1024;
+
+    private final long maxPooledBytes;
+    private final ArrayList<byte[]> free = new ArrayList<>();
+    private long pooledBytes;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes Most bytes kept in idle buffers
+     */
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * A buffer of at least size bytes, with arbitrary contents
+     */
+    byte[] acquire(int size) {
+        synchronized (free) {
+            int best = -1;
+            for (int i = 0; i < free.size(); i++) {
+                int length = free.get(i).length;
+                if (length >= size && (best < 0 || length < free.get(best).length))
+                    best = i;
+            }
+            if (best >= 0) {
+                byte[] buffer = free.remove(best);
+                pooledBytes -= buffer.length;
+                reuses.incrementAndGet();
+                return buffer;
+            }
+        }
+
+        int length = (int) Math.min(Integer.MAX_VALUE - 8,
+                ((long) size + GRANULE - 1) / GRANULE * GRANULE);
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(length);
+        return new byte[length];
+    }
+
+    /**
+     * Hands a buffer back, the caller must not touch it afterwards.  Null is ignored.
+     */
+    void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+        synchronized (free) {
+            if (pooledBytes + buffer.length > maxPooledBytes)
+                return;
+            free.add(buffer);
+            pooledBytes += buffer.length;
+        }
+    }
+
+    long getAllocations() {
+        return allocations.get();
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    long getReuses() {
+        return reuses.get();
+    }
+
+    long getPooledBytes() {
+        synchronized (free) {
+            return pooledBytes;
+        }
+    }
+
+    /**
+     * An output stream, for encoders, that writes straight into pooled buffers.  Growing
+     * swaps in a bigger buffer and hands the old one back.  Not thread safe.
+     */
+    class Output extends OutputStream {
+        private final int initialSize;
+        private byte[] buffer;
+        private int count;
+
+        /**
+         * @param initialSize Size of the first buffer, best a typical picture size
+         */
+        Output(int initialSize) {
+            this.initialSize = initialSize;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (buffer == null) {
+                buffer = acquire(Math.max(needed, initialSize));
+            } else if (needed > buffer.length) {
+                byte[] bigger = acquire((int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(needed, buffer.length * 2L)));
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                release(buffer);
+                buffer = bigger;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        /**
+         * Bytes written since the last {@link #take()}
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Hands over the buffer holding everything written so far, to be released by the
+         * new owner, and starts afresh
+         * @return the buffer, whose first {@link #size()} bytes before the call are valid
+         */
+        byte[] take() {
+            ensureCapacity(0);
+            byte[] taken = buffer;
+            buffer = null;
+            count = 0;
+            return taken;
+        }
+
+        /**
+         * Drops anything written and returns the buffer to the pool
+         */
+        void discard() {
+            release(buffer);
+            buffer = null;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,854 @@
+package ca.skilarchhills.android.cameratiming;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One PC connected to the phone.  Runs the command loop for that PC on its own
+ * thread, so a slow client never holds up the others, and keeps its own position
+ * in the shared {@link ImageCatalog}.
+ */
+class ClientConnection implements Runnable {
+    private static final String TAG = "CameraTimingSocket";
+
+    // Per command logging, off unless enabled with "setprop log.tag.CameraTimingSocket VERBOSE"
+    private static final boolean VERBOSE = CoreLog.isLoggable(TAG, CoreLog.VERBOSE);
+
+    // Error messages
+    private static final int NO_DATA = 1;
+    private static final int NOT_IMPLEMENTED = 2;
+    private static final int INVALID_ARGUMENT = 7;
+
+    // Replies
+    private static final int NANOS_ENABLED = 3;
+    private static final int WINDOW_SET = 4;
+    private static final int SUBSCRIBED = 5;
+    private static final int THUMBNAILS_ENABLED = 6;
+
+    // Commands that the phone can send
+    private static final int PHONE_IMAGE = 1001;
+    private static final int PHONE_WITH_SECOND_IMAGE = 1002;
+    private static final int PHONE_BULK_START = 1003;
+    private static final int PHONE_BULK_END = 1004;
+    private static final int PHONE_THUMBNAIL = 1005;
+    private static final int PHONE_STATS = 1006;
+    private static final int PHONE_TRIGGERS = 1007;
+    private static final int PHONE_CACHE_STATS = 1008;
+
+    // Commands that the PC can send
+    private static final int PC_ACK = 2001;
+    private static final int PC_REQUEST_NEXT = 2002;
+    private static final int PC_REQUEST_SPECIFIC = 2003;
+    private static final int PC_REQUEST_ALL = 2004;
+    private static final int PC_REQUEST_NANOS = 2005;
+    private static final int PC_SET_WINDOW = 2006;
+    private static final int PC_ACK_UP_TO = 2007;
+    private static final int PC_SUBSCRIBE = 2008;
+    private static final int PC_UNSUBSCRIBE = 2009;
+    private static final int PC_REQUEST_RANGE = 2010;
+    private static final int PC_REQUEST_TIME_RANGE = 2011;
+    private static final int PC_REQUEST_THUMBNAILS = 2012;
+    private static final int PC_REQUEST_FULL = 2013;
+    private static final int PC_REQUEST_STATS = 2014;
+    private static final int PC_REQUEST_TRIGGERS = 2015;
+    private static final int PC_REQUEST_CACHE_STATS = 2016;
+
+    // How long to wait for an ACK or a command argument before giving up on the PC
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    // Largest window a PC may ask for
+    private static final int MAX_WINDOW_SIZE = 64;
+
+    // Times the whole window is resent without any progress before giving up on the PC
+    private static final int MAX_RETRANSMITS = 3;
+
+    // How often a subscribed connection checks for ACKs while waiting on a new picture
+    private static final long PUSH_POLL_MS = 100;
+
+    /**
+     * Delivery progress for one PC, kept by the server across reconnects from the same address.
+     * Lock free, a PC that reconnects while its old connection is still winding down may
+     * briefly have two threads moving the same cursors.
+     */
+    static class ClientState {
+        // Next image PC_REQUEST_NEXT hands out
+        private final AtomicInteger nextIndex;
+        // Highest index acknowledged from a bulk transfer
+        private final AtomicInteger bulkAcked = new AtomicInteger(-1);
+        // One past the highest index acknowledged in full, however it was asked for
+        private final AtomicInteger reached = new AtomicInteger();
+
+        ClientState(int nextIndex) {
+            this.nextIndex = new AtomicInteger(nextIndex);
+        }
+
+        /**
+         * Claims the next image for this PC
+         * @return its index, or -1 if there are only count images
+         */
+        int takeNext(int count) {
+            while (true) {
+                int next = nextIndex.get();
+                if (next >= count)
+                    return -1;
+                if (nextIndex.compareAndSet(next, next + 1))
+                    return next;
+            }
+        }
+
+        int getNext() {
+            return nextIndex.get();
+        }
+
+        void advanceNext(int index) {
+            raise(nextIndex, index);
+        }
+
+        int getBulkResume() {
+            return bulkAcked.get() + 1;
+        }
+
+        void setBulkAcked(int index) {
+            raise(bulkAcked, index);
+        }
+
+        void setReached(int index) {
+            raise(reached, index);
+        }
+
+        /**
+         * How far through the catalog this PC has got by any route.  Pictures it skipped
+         * or fetched out of order don't hold it back.
+         */
+        int getPosition() {
+            return Math.max(nextIndex.get(), Math.max(bulkAcked.get() + 1, reached.get()));
+        }
+
+        /**
+         * Moves a cursor forward to value, never back
+         */
+        private static void raise(AtomicInteger cursor, int value) {
+            while (true) {
+                int current = cursor.get();
+                if (current >= value || cursor.compareAndSet(current, value))
+                    return;
+            }
+        }
+    }
+
+    private final ImageCatalog catalog;
+    private final QualityController controller = QualityController.get();
+    private final ClientState state;
+    private final SocketChannel socketChannel;
+    private final Socket socket;
+    private ProtocolCodec codec;
+    private volatile boolean closed;
+
+    // Whether the PC wants image timestamps in nanoseconds instead of milliseconds
+    private boolean sendNanos;
+
+    // Whether images go out as PHONE_THUMBNAIL previews, full pictures then need PC_REQUEST_FULL
+    private boolean sendThumbnails;
+
+    // Images the PC lets us have in flight without an ACK, 1 is stop-and-wait
+    private int windowSize = 1;
+
+    // When each image in the window was sent, by index modulo MAX_WINDOW_SIZE
+    private final long[] sentAt = new long[MAX_WINDOW_SIZE];
+
+    ClientConnection(SocketChannel socketChannel, ImageCatalog catalog, ClientState state) {
+        this.socketChannel = socketChannel;
+        this.socket = socketChannel.socket();
+        this.catalog = catalog;
+        this.state = state;
+    }
+
+    ClientState getState() {
+        return state;
+    }
+
+    InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    String getRemoteAddress() {
+        return socket.getRemoteSocketAddress().toString();
+    }
+
+    @Override
+    public void run() {
+        try {
+            codec = new ProtocolCodec(socket.getInputStream(),
+                    new BufferedOutputStream(socket.getOutputStream()));
+            socket.setKeepAlive(true);
+            // Every message is flushed whole, so Nagle only holds the tail of a picture
+            // back until the PC's delayed ACK, 40 ms per picture in stop-and-wait
+            socket.setTcpNoDelay(true);
+            CoreLog.i(TAG, "Client " + getRemoteAddress() + " connected");
+
+            serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            CoreLog.e(TAG, "Client " + getRemoteAddress() + ": Caught IOException");
+        } catch (Exception e) {
+            e.printStackTrace();
+            CoreLog.e(TAG, "Client " + getRemoteAddress() + ": Caught Exception");
+        } finally {
+            close();
+            CoreLog.i(TAG, "Client " + getRemoteAddress() + " disconnected");
+        }
+    }
+
+    /**
+     * The command loop, returns when the connection should be closed
+     */
+    private void serve() throws IOException {
+        while (socket.isConnected() && !socket.isClosed() && !closed) {
+            // Read next command from PC
+            long cmd = readLong(0);
+            if (VERBOSE)
+                CoreLog.v(TAG, "Read " + cmd);
+            if(cmd == -1) {
+                // Error reading data
+                CoreLog.e(TAG, "Failed to read command from computer");
+                return;
+            }
+
+            int fileIndex;
+            boolean thumbnail = sendThumbnails;
+            // Past the int range it's no command at all, rather than one whose low bits match
+            switch (cmd == (int) cmd ? (int) cmd : 0) {
+                case PC_REQUEST_NEXT:
+                    if (windowSize > 1) {
+                        if (state.getNext() >= catalog.size()) {
+                            if (!sendReply(NO_DATA))
+                                return;
+                        } else if (!streamWindow(false)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    fileIndex = state.takeNext(catalog.size());
+                    if (fileIndex < 0) {
+                        if (!sendReply(NO_DATA))
+                            return;
+                        continue;
+                    }
+                    break;
+                case PC_REQUEST_SPECIFIC:
+                    fileIndex = toIndex(readArgument());
+                    if (catalog.getFile(fileIndex) == null) {
+                        if (!sendReply(NO_DATA))
+                            return;
+                        continue;
+                    }
+                    break;
+                case PC_REQUEST_FULL:
+                    // Full picture even when sending thumbnails
+                    fileIndex = toIndex(readArgument());
+                    if (catalog.getFile(fileIndex) == null) {
+                        if (!sendReply(NO_DATA))
+                            return;
+                        continue;
+                    }
+                    thumbnail = false;
+                    break;
+                case PC_REQUEST_THUMBNAILS:
+                    // Every image is sent as a thumbnail from now on
+                    sendThumbnails = true;
+                    if (!sendReply(THUMBNAILS_ENABLED))
+                        return;
+                    continue;
+                case PC_REQUEST_STATS:
+                    if (!sendStats())
+                        return;
+                    continue;
+                case PC_REQUEST_TRIGGERS:
+                    long firstTrigger = readArgument();
+                    if (!sendTriggers((int) Math.min(Math.max(0, firstTrigger), Integer.MAX_VALUE)))
+                        return;
+                    continue;
+                case PC_REQUEST_CACHE_STATS:
+                    if (!sendCacheStats())
+                        return;
+                    continue;
+                case PC_REQUEST_NANOS:
+                    // Timestamps are in nanoseconds from now on
+                    sendNanos = true;
+                    if (!sendReply(NANOS_ENABLED))
+                        return;
+                    continue;
+                case PC_SET_WINDOW:
+                    // Clamped so a confused PC can't make us stream the whole queue blind
+                    long window = readArgument();
+                    if (window < 1) {
+                        if (!sendReply(INVALID_ARGUMENT))
+                            return;
+                        continue;
+                    }
+                    windowSize = (int) Math.min(window, MAX_WINDOW_SIZE);
+                    if (!sendReply(WINDOW_SET))
+                        return;
+                    continue;
+                case PC_SUBSCRIBE:
+                    if (!sendReply(SUBSCRIBED) || !streamWindow(true))
+                        return;
+                    continue;
+                case PC_REQUEST_ALL:
+                    // Carry on from whatever this PC acknowledged last time
+                    if (!streamRange(state.getBulkResume(), catalog.size() - 1))
+                        return;
+                    continue;
+                case PC_REQUEST_RANGE:
+                    long first = readArgument();
+                    long to = readArgument();
+                    int from = (int) Math.min(Math.max(0, first), Integer.MAX_VALUE);
+                    int last = catalog.size() - 1;
+                    if (!streamRange(from, to < 0 ? last : (int) Math.min(to, last)))
+                        return;
+                    continue;
+                case PC_REQUEST_TIME_RANGE:
+                    // Both ends inclusive, in the PC's timestamp unit
+                    long start = readArgument();
+                    long end = readArgument();
+                    if (!sendNanos) {
+                        start = millisToNanos(start);
+                        end = millisToNanos(end);
+                        if (end != Long.MAX_VALUE)
+                            end += 999999;
+                    }
+                    if (!streamIndices(catalog.findRange(start, end)))
+                        return;
+                    continue;
+                default:
+                    // Not implemented
+                    if (!sendReply(NOT_IMPLEMENTED))
+                        return;
+                    continue;
+            }
+
+            if(!sendFile(fileIndex, thumbnail))
+                return;
+
+            long sent = System.nanoTime();
+            if(!waitForAck())
+                return;
+            Metrics.ACK.record(System.nanoTime() - sent);
+            // A PC that only has the thumbnail may still want the picture
+            if (!thumbnail)
+                delivered(fileIndex, fileIndex + 1);
+        }
+    }
+
+    /**
+     * Reads a long from socket
+     * @param timeout Milliseconds to wait, 0 to wait forever
+     * @return next 8 bytes as long from socket, or -1 on error
+     */
+    private long readLong(int timeout) {
+        try {
+            socket.setSoTimeout(timeout);
+            return codec.readLong();
+        } catch (SocketTimeoutException e) {
+            CoreLog.e(TAG, "Timed out reading long");
+            return -1;
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            CoreLog.e(TAG, "Reading long - caught exception");
+
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a command argument.  Unlike {@link #readLong} there is no value left over to
+     * signal an error, every one is a valid argument, so a PC that stops part way through
+     * a command gets an exception that ends the connection.
+     */
+    private long readArgument() throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        return codec.readLong();
+    }
+
+    /**
+     * An image index from the PC, or -1 if the value can't be one
+     */
+    private static int toIndex(long value) {
+        return value < 0 || value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * Reads the index of a PC_ACK_UP_TO, limited to the images it can acknowledge
+     * @param first First image sent, the result is one below it if none are acknowledged
+     * @param last  Last image sent
+     */
+    private int readAcked(int first, int last) throws IOException {
+        return (int) Math.max(first - 1, Math.min(readArgument(), last));
+    }
+
+    /**
+     * Milliseconds from the PC in nanoseconds, clamped instead of overflowing
+     */
+    private static long millisToNanos(long millis) {
+        if (millis >= Long.MAX_VALUE / 1000000)
+            return Long.MAX_VALUE;
+        if (millis <= Long.MIN_VALUE / 1000000)
+            return Long.MIN_VALUE;
+        return millis * 1000000;
+    }
+
+    /**
+     * Sends a reply code that the PC has to acknowledge
+     * Returns true if ACK received, false otherwise
+     */
+    private boolean sendReply(int reply) throws IOException {
+        codec.writeLong(reply);
+        codec.flush();
+        return waitForAck();
+    }
+
+    /**
+     * Waits for the PC to acknowledge receipt of the packet
+     * Returns true if ACK received, false otherwise
+     */
+    private boolean waitForAck() {
+        long ret = readLong(READ_TIMEOUT_MS);
+        if (VERBOSE)
+            CoreLog.v(TAG, "Read " + ret);
+        return ret == PC_ACK;
+    }
+
+    /**
+     * Sends a file across the socket, as a thumbnail if the PC asked for those
+     * @param fileIndex File number
+     * @return Success
+     */
+    private boolean sendFile(int fileIndex) throws IOException {
+        return sendFile(fileIndex, sendThumbnails);
+    }
+
+    /**
+     * Sends a file across the socket
+     * @param fileIndex File number
+     * @param thumbnail Send the thumbnail if there is one, pictures from before thumbnails
+     *                  existed always go out in full
+     * @return Success
+     */
+    private boolean sendFile(int fileIndex, boolean thumbnail) throws IOException {
+        ImageCache.Entry cached = catalog.getCache().acquire(fileIndex, thumbnail);
+        if (cached != null)
+            return sendCached(cached, fileIndex, thumbnail);
+        if (catalog.isStored(fileIndex))
+            return sendStored(fileIndex, thumbnail);
+
+        FileInputStream fis = null;
+        try {
+            if (VERBOSE)
+                CoreLog.v(TAG, "Sending file " + fileIndex);
+
+            File file = catalog.getFile(fileIndex);
+            int command = PHONE_IMAGE;
+            if (thumbnail) {
+                File thumbnailFile = ImageName.thumbnailFor(file);
+                if (thumbnailFile.exists()) {
+                    file = thumbnailFile;
+                    command = PHONE_THUMBNAIL;
+                }
+            }
+
+            fis = new FileInputStream(file);
+            FileChannel fileChannel = fis.getChannel();
+            long numBytes = fileChannel.size();
+            long start = System.nanoTime();
+            sendHeader(command, fileIndex, numBytes);
+            FileTransfer.transfer(fileChannel, 0, numBytes, socketChannel);
+            recordSend(command, numBytes, start);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a picture kept in the segment store, the same way as {@link #sendFile}
+     */
+    private boolean sendStored(int fileIndex, boolean thumbnail) {
+        try {
+            if (VERBOSE)
+                CoreLog.v(TAG, "Sending stored picture " + fileIndex);
+
+            int command = PHONE_IMAGE;
+            long location = catalog.getLocation(fileIndex);
+            long numBytes = catalog.getSize(fileIndex);
+            int thumbnailSize = catalog.getThumbnailSize(fileIndex);
+            if (thumbnail && thumbnailSize > 0) {
+                // Stored straight after the picture
+                location += numBytes;
+                numBytes = thumbnailSize;
+                command = PHONE_THUMBNAIL;
+            }
+
+            long start = System.nanoTime();
+            sendHeader(command, fileIndex, numBytes);
+            catalog.getStore().transfer(location, numBytes, socketChannel);
+            recordSend(command, numBytes, start);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Sends a picture straight from the cache, the same way as {@link #sendFile}
+     */
+    private boolean sendCached(ImageCache.Entry cached, int fileIndex, boolean thumbnail) {
+        try {
+            if (VERBOSE)
+                CoreLog.v(TAG, "Sending cached picture " + fileIndex);
+
+            int command = thumbnail ? PHONE_THUMBNAIL : PHONE_IMAGE;
+            ByteBuffer data = cached.getData();
+            long numBytes = data.remaining();
+            long start = System.nanoTime();
+            sendHeader(command, fileIndex, numBytes);
+            while (data.hasRemaining())
+                socketChannel.write(data);
+            recordSend(command, numBytes, start);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            catalog.getCache().release(cached);
+        }
+    }
+
+    private void sendHeader(int command, int fileIndex, long numBytes) throws IOException {
+        long timestamp = catalog.getTimestamp(fileIndex);
+        if (!sendNanos)
+            timestamp /= 1000000;
+
+        // The header has to be on the wire before the channel writes behind the stream
+        codec.writeHeader(command, fileIndex, timestamp, numBytes);
+        codec.flush();
+    }
+
+    private void recordSend(int command, long numBytes, long start) {
+        long elapsed = System.nanoTime() - start;
+        Metrics.SEND.record(elapsed);
+        if (command == PHONE_IMAGE)
+            controller.onSent(numBytes, elapsed);
+    }
+
+    /**
+     * Answers PC_REQUEST_STATS: PHONE_STATS, the number of histograms, then for each one in
+     * {@link Metrics#ALL} order its count, 50th and 99th percentiles and maximum, all
+     * durations in microseconds.
+     * @return Success
+     */
+    private boolean sendStats() throws IOException {
+        codec.writeLong(PHONE_STATS);
+        codec.writeLong(Metrics.ALL.length);
+        for (LatencyHistogram histogram : Metrics.ALL) {
+            codec.writeLong(histogram.getCount());
+            codec.writeLong(histogram.getPercentileMicros(0.5));
+            codec.writeLong(histogram.getPercentileMicros(0.99));
+            codec.writeLong(histogram.getMaxMicros());
+        }
+        codec.flush();
+        return waitForAck();
+    }
+
+    /**
+     * Answers PC_REQUEST_CACHE_STATS: PHONE_CACHE_STATS, then the picture cache's hits,
+     * misses, bytes evicted so far and bytes held now
+     * @return Success
+     */
+    private boolean sendCacheStats() throws IOException {
+        ImageCache cache = catalog.getCache();
+        codec.writeLong(PHONE_CACHE_STATS);
+        codec.writeLong(cache.getHits());
+        codec.writeLong(cache.getMisses());
+        codec.writeLong(cache.getEvictedBytes());
+        codec.writeLong(cache.getCachedBytes());
+        codec.flush();
+        return waitForAck();
+    }
+
+    /**
+     * Answers PC_REQUEST_TRIGGERS: PHONE_TRIGGERS, the index of the first trigger, the
+     * number of triggers, then for each one its time and the time of the trigger that
+     * started its capture.  Triggers that share a capture share that second time, which
+     * matches the pictures' timestamps the same way a lone trigger's does.
+     * @param from First trigger index wanted
+     * @return Success
+     */
+    private boolean sendTriggers(int from) throws IOException {
+        TriggerLog triggers = catalog.getTriggers();
+        int count = triggers.size() - from;
+        if (count <= 0)
+            return sendReply(NO_DATA);
+
+        long divisor = sendNanos ? 1 : 1000000;
+        codec.writeLong(PHONE_TRIGGERS);
+        codec.writeLong(from);
+        codec.writeLong(count);
+        for (int i = from; i < from + count; i++) {
+            codec.writeLong(triggers.getTime(i) / divisor);
+            codec.writeLong(triggers.getBurst(i) / divisor);
+        }
+        codec.flush();
+        return waitForAck();
+    }
+
+    /**
+     * Sliding window delivery, for PC_REQUEST_NEXT once the PC has sent PC_SET_WINDOW and
+     * for PC_SUBSCRIBE.
+     *
+     * Up to windowSize images are streamed back to back starting at the client's next
+     * index.  The PC acknowledges with PC_ACK_UP_TO and the index of the last image it
+     * has, and each ACK slides the window on.  A plain PC_ACK acknowledges the oldest
+     * image in flight.  If no ACK arrives within the read timeout, everything
+     * unacknowledged is sent again (so the PC has to drop duplicates by index).
+     *
+     * Without follow this returns once every image that was queued has been acknowledged.
+     * With follow it keeps going, pushing each new image the moment it is queued, until the
+     * PC sends PC_UNSUBSCRIBE.
+     * @return Success, false if the connection should be dropped
+     */
+    private boolean streamWindow(boolean follow) throws IOException {
+        int base = state.getNext();
+        int next = base;
+        int retransmits = 0;
+        long lastProgress = System.nanoTime() / 1000000;
+
+        while (!closed) {
+            // Fill the window
+            while (next < base + windowSize && next < catalog.size()) {
+                if (!sendFile(next))
+                    return false;
+                sentAt[next % MAX_WINDOW_SIZE] = System.nanoTime();
+                next++;
+            }
+            if (base == next && !follow)
+                return true;
+
+            boolean timedOut = false;
+            long cmd = 0;
+            if (!follow || next - base >= windowSize || codec.hasPending()) {
+                // Nothing else to send until the PC says something
+                try {
+                    socket.setSoTimeout(READ_TIMEOUT_MS);
+                    cmd = codec.readLong();
+                } catch (SocketTimeoutException e) {
+                    timedOut = true;
+                }
+            } else if (base != next &&
+                    System.nanoTime() / 1000000 - lastProgress > READ_TIMEOUT_MS) {
+                timedOut = true;
+            } else {
+                // Room in the window and nothing from the PC, wait for the next picture
+                try {
+                    catalog.awaitIndex(next, PUSH_POLL_MS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (timedOut) {
+                // Go back and resend everything not acknowledged yet
+                if (++retransmits > MAX_RETRANSMITS) {
+                    CoreLog.e(TAG, "No ACK after resending window, giving up");
+                    return false;
+                }
+                CoreLog.w(TAG, String.format("Resending %d images from %d", next - base, base));
+                next = base;
+                lastProgress = System.nanoTime() / 1000000;
+                continue;
+            }
+
+            long acked;
+            if (cmd == PC_ACK_UP_TO) {
+                acked = readAcked(base, next - 1) + 1;
+            } else if (cmd == PC_ACK) {
+                acked = base + 1;
+            } else if (cmd == PC_UNSUBSCRIBE && follow) {
+                // Anything still in flight is sent again on the next request
+                return true;
+            } else {
+                CoreLog.e(TAG, "Unexpected command while streaming " + cmd);
+                return false;
+            }
+
+            // Cumulative, so stale and duplicate ACKs are harmless
+            acked = Math.min(acked, next);
+            if (acked > base) {
+                Metrics.ACK.record(System.nanoTime() -
+                        sentAt[(int) (acked - 1) % MAX_WINDOW_SIZE]);
+                if (!sendThumbnails)
+                    delivered(base, (int) acked);
+                base = (int) acked;
+                retransmits = 0;
+                lastProgress = System.nanoTime() / 1000000;
+                state.advanceNext(base);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams a range of images in one go, for PC_REQUEST_ALL and PC_REQUEST_RANGE.
+     *
+     * The transfer is framed by a PHONE_BULK_START header (first index, last index, count),
+     * then a PHONE_IMAGE or PHONE_THUMBNAIL frame per image and finally PHONE_BULK_END, and
+     * a single ACK covers the lot.  The PC may also send PC_ACK_UP_TO while images are still
+     * coming in.  The highest index acknowledged is remembered for the PC's address, so a
+     * PC_REQUEST_ALL after a dropped connection resumes from there instead of starting over.
+     * @param from First index, inclusive
+     * @param to   Last index, inclusive
+     * @return Success, false if the connection should be dropped
+     */
+    private boolean streamRange(int from, int to) throws IOException {
+        if (from > to)
+            return sendReply(NO_DATA);
+
+        codec.writeHeader(PHONE_BULK_START, from, to, to - from + 1);
+
+        for (int index = from; index <= to; index++) {
+            if (!sendFile(index))
+                return false;
+
+            // Pick up any progress ACKs without waiting for them
+            while (codec.hasPending()) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                long cmd = codec.readLong();
+                if (cmd != PC_ACK_UP_TO) {
+                    CoreLog.e(TAG, "Unexpected command during bulk transfer " + cmd);
+                    return false;
+                }
+                int acked = readAcked(from, index);
+                if (acked >= from) {
+                    state.setBulkAcked(acked);
+                    if (!sendThumbnails)
+                        delivered(from, acked + 1);
+                }
+            }
+        }
+
+        codec.writeLong(PHONE_BULK_END);
+        codec.flush();
+
+        long sent = System.nanoTime();
+        long cmd = readLong(READ_TIMEOUT_MS);
+        Metrics.ACK.record(System.nanoTime() - sent);
+        int acked;
+        if (cmd == PC_ACK) {
+            acked = to;
+        } else if (cmd == PC_ACK_UP_TO) {
+            acked = readAcked(from, to);
+        } else {
+            CoreLog.e(TAG, "Bulk transfer not acknowledged " + cmd);
+            return false;
+        }
+        if (acked >= from) {
+            state.setBulkAcked(acked);
+            if (!sendThumbnails)
+                delivered(from, acked + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Streams an arbitrary set of images in one go, for PC_REQUEST_TIME_RANGE.  Framed the
+     * same way as {@link #streamRange(int, int)}, except the images go out in the order
+     * given, and it doesn't move the PC's PC_REQUEST_ALL resume point.  Progress ACKs are
+     * accepted but only the final ACK counts.
+     * @return Success, false if the connection should be dropped
+     */
+    private boolean streamIndices(int[] indices) throws IOException {
+        if (indices.length == 0)
+            return sendReply(NO_DATA);
+
+        codec.writeHeader(PHONE_BULK_START, indices[0], indices[indices.length - 1],
+                indices.length);
+
+        for (int index : indices) {
+            if (!sendFile(index))
+                return false;
+
+            while (codec.hasPending()) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                long cmd = codec.readLong();
+                if (cmd != PC_ACK_UP_TO) {
+                    CoreLog.e(TAG, "Unexpected command during bulk transfer " + cmd);
+                    return false;
+                }
+                readArgument();
+            }
+        }
+
+        codec.writeLong(PHONE_BULK_END);
+        codec.flush();
+
+        long sent = System.nanoTime();
+        long cmd = readLong(READ_TIMEOUT_MS);
+        Metrics.ACK.record(System.nanoTime() - sent);
+        if (cmd == PC_ACK_UP_TO)
+            cmd = readArgument() == indices[indices.length - 1] ? PC_ACK : -1;
+        if (cmd != PC_ACK) {
+            CoreLog.e(TAG, "Bulk transfer not acknowledged " + cmd);
+            return false;
+        }
+        if (!sendThumbnails) {
+            for (int index : indices)
+                delivered(index, index + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Records pictures the PC acknowledged in full
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     */
+    private void delivered(int from, int to) {
+        catalog.markDelivered(from, to);
+        state.setReached(to);
+    }
+
+    /**
+     * Closes the socket and associated streams, safe to call from any thread
+     */
+    void close() {
+        closed = true;
+        try {
+            if (codec != null)
+                codec.close();
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ca.skilarchhills.android.cameratiming;
+
+/**
+ * Logging for the code shared with the JVM tools, shaped like android.util.Log so call
+ * sites read the same.  The app points it at android.util.Log with {@link #setSink(Sink)},
+ * anywhere else it prints INFO and above to stderr.
+ */
+final class CoreLog {
+    // Same values as android.util.Log
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    /**
+     * Where log lines end up
+     */
+    interface Sink {
+        boolean isLoggable(String tag, int level);
+        void println(int level, String tag, String message);
+    }
+
+    private static final Sink STDERR = new Sink() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            return level >= INFO;
+        }
+
+        @Override
+        public void println(int level, String tag, String message) {
+            System.err.println("VVDIWE".charAt(level - 1) + "/" + tag + ": " + message);
+        }
+    };
+
+    private static volatile Sink sink = STDERR;
+
+    private CoreLog() {
+    }
+
+    /**
+     * Sends all further logging to the given sink, null to go back to stderr
+     */
+    static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR;
+    }
+
+    static boolean isLoggable(String tag, int level) {
+        return sink.isLoggable(tag, level);
+    }
+
+    static void v(String tag, String message) {
+        log(VERBOSE, tag, message);
+    }
+
+    static void d(String tag, String message) {
+        log(DEBUG, tag, message);
+    }
+
+    static void i(String tag, String message) {
+        log(INFO, tag, message);
+    }
+
+    static void w(String tag, String message) {
+        log(WARN, tag, message);
+    }
+
+    static void e(String tag, String message) {
+        log(ERROR, tag, message);
+    }
+
+    private static void log(int level, String tag, String message) {
+        Sink current = sink;
+        if (current.isLoggable(tag, level))
+            current.println(level, tag, message);
+    }
+}
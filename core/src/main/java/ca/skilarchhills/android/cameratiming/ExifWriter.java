@@ -0,0 +1,395 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.Checksum;
+
+/**
+ * Puts an EXIF APP1 segment in front of freshly encoded JPEG data as it is written, so a
+ * picture goes to storage once instead of being written and then rewritten by
+ * ExifInterface.saveAttributes() just to set the orientation.
+ *
+ * The segment holds the orientation, the capture time to the nanosecond (DateTimeOriginal,
+ * SubSecTimeOriginal and OffsetTimeOriginal), the picture's index in the catalog as
+ * ImageNumber, and the exposure settings when they are known.  Any JFIF APP0 or EXIF APP1
+ * the encoder wrote is dropped in favour of it.
+ *
+ * Holds the fields for one picture at a time and reuses its buffers, so each writer
+ * thread needs its own.
+ */
+class ExifWriter {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // JPEG markers
+    private static final int SOI = 0xd8;
+    private static final int APP0 = 0xe0;
+    private static final int APP1 = 0xe1;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    // TIFF field types
+    private static final int ASCII_TYPE = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int RATIONAL = 5;
+    private static final int UNDEFINED = 7;
+
+    // IFD0 tags
+    private static final int TAG_MAKE = 0x010f;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+
+    // Exif IFD tags
+    private static final int TAG_EXPOSURE_TIME = 0x829a;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final int TAG_FOCAL_LENGTH = 0x920a;
+    private static final int TAG_IMAGE_NUMBER = 0x9211;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+
+    // OffsetTimeOriginal needs 2.31
+    private static final byte[] EXIF_VERSION = {'0', '2', '3', '1'};
+
+    // Largest APP1 payload a segment length can describe
+    private static final int MAX_SEGMENT = 65533;
+
+    /**
+     * Most bytes the SOI marker and EXIF segment add in front of a picture
+     */
+    static final int MAX_HEADER_SIZE = 2 + 2 + 2 + MAX_SEGMENT;
+
+    /**
+     * The entries of one IFD, in the order they are added, which has to be tag order
+     */
+    private static final class Ifd {
+        final int[] tags = new int[12];
+        final int[] types = new int[12];
+        final int[] counts = new int[12];
+        final byte[][] values = new byte[12][];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int tag, int type, int count, byte[] value) {
+            tags[size] = tag;
+            types[size] = type;
+            counts[size] = count;
+            values[size++] = value;
+        }
+
+        /**
+         * Bytes taken by the entry table, without the values stored after it
+         */
+        int tableSize() {
+            return 2 + size * 12 + 4;
+        }
+
+        /**
+         * Bytes taken by values too big to fit in their entry
+         */
+        int dataSize() {
+            int total = 0;
+            for (int i = 0; i < size; i++)
+                if (values[i].length > 4)
+                    total += (values[i].length + 1) & ~1;
+            return total;
+        }
+
+        /**
+         * Writes the IFD at the buffer's position, which is start bytes into the TIFF data
+         */
+        void write(ByteBuffer out, int start) {
+            int data = start + tableSize();
+            out.putShort((short) size);
+            for (int i = 0; i < size; i++) {
+                out.putShort((short) tags[i]).putShort((short) types[i]).putInt(counts[i]);
+                byte[] value = values[i];
+                if (value.length <= 4) {
+                    out.put(value);
+                    for (int pad = value.length; pad < 4; pad++)
+                        out.put((byte) 0);
+                } else {
+                    out.putInt(data);
+                    data += (value.length + 1) & ~1;
+                }
+            }
+            out.putInt(0);
+            for (int i = 0; i < size; i++) {
+                if (values[i].length > 4) {
+                    out.put(values[i]);
+                    if ((values[i].length & 1) != 0)
+                        out.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    private final byte[] make;
+    private final byte[] model;
+    private final Calendar calendar;
+    private final Ifd ifd0 = new Ifd();
+    private final Ifd exifIfd = new Ifd();
+    private final ByteBuffer segment = ByteBuffer.allocate(MAX_HEADER_SIZE);
+
+    // Fields of the current picture, see clear()
+    private int orientation;
+    private long timeNanos;
+    private boolean hasTime;
+    private long imageNumber;
+    private long exposureNanos;
+    private int iso;
+    private float focalLength;
+
+    /**
+     * @param make  Camera maker, null to leave out
+     * @param model Camera model, null to leave out
+     * @param zone  Time zone the capture times are written in
+     */
+    ExifWriter(String make, String model, TimeZone zone) {
+        this.make = make != null ? ascii(make) : null;
+        this.model = model != null ? ascii(model) : null;
+        calendar = Calendar.getInstance(zone, Locale.US);
+        clear();
+    }
+
+    /**
+     * Forgets the fields of the last picture
+     */
+    void clear() {
+        orientation = 0;
+        hasTime = false;
+        imageNumber = -1;
+        exposureNanos = 0;
+        iso = 0;
+        focalLength = 0;
+    }
+
+    /**
+     * @param orientation One of the EXIF orientation values, 0 to leave it out
+     */
+    void setOrientation(int orientation) {
+        this.orientation = orientation;
+    }
+
+    /**
+     * Wall clock capture time
+     */
+    void setTime(long wallNanos) {
+        if (wallNanos < 0)
+            throw new IllegalArgumentException("Time before 1970: " + wallNanos);
+        timeNanos = wallNanos;
+        hasTime = true;
+    }
+
+    /**
+     * Index of the picture in the catalog, negative to leave it out
+     */
+    void setImageNumber(long index) {
+        imageNumber = index;
+    }
+
+    /**
+     * Exposure settings, any of them 0 if unknown
+     */
+    void setExposure(long exposureNanos, int iso, float focalLength) {
+        this.exposureNanos = exposureNanos;
+        this.iso = iso;
+        this.focalLength = focalLength;
+    }
+
+    /**
+     * Writes a JPEG with the current fields as its EXIF segment.  Data that doesn't start
+     * with a JPEG SOI marker is written unchanged.
+     * @param checksum Updated with every byte written, may be null
+     * @return Bytes written
+     */
+    int write(OutputStream out, byte[] jpeg, int length, Checksum checksum) throws IOException {
+        if (length < 2 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != SOI) {
+            write(out, jpeg, 0, length, checksum);
+            return length;
+        }
+
+        buildSegment();
+        write(out, segment.array(), 0, segment.position(), checksum);
+
+        int body = skipMetadata(jpeg, length);
+        write(out, jpeg, body, length - body, checksum);
+        return segment.position() + length - body;
+    }
+
+    private static void write(OutputStream out, byte[] bytes, int offset, int length,
+                              Checksum checksum) throws IOException {
+        out.write(bytes, offset, length);
+        if (checksum != null)
+            checksum.update(bytes, offset, length);
+    }
+
+    /**
+     * Offset of the first segment after SOI that isn't a JFIF APP0 or EXIF APP1
+     */
+    private static int skipMetadata(byte[] jpeg, int length) {
+        int position = 2;
+        while (position + 4 <= length && (jpeg[position] & 0xff) == 0xff) {
+            int marker = jpeg[position + 1] & 0xff;
+            int segmentLength = (jpeg[position + 2] & 0xff) << 8 | (jpeg[position + 3] & 0xff);
+            boolean exif = marker == APP1 && position + 4 + EXIF_HEADER.length <= length &&
+                    startsWith(jpeg, position + 4, EXIF_HEADER);
+            if (marker != APP0 && !exif)
+                break;
+            position += 2 + segmentLength;
+        }
+        return Math.min(position, length);
+    }
+
+    /**
+     * The orientation tag in a JPEG's EXIF segment, such as the one the camera writes
+     * @return The orientation, 0 if there isn't one
+     */
+    static int readOrientation(byte[] jpeg, int length) {
+        if (length < 2 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != SOI)
+            return 0;
+        int position = 2;
+        while (position + 4 <= length && (jpeg[position] & 0xff) == 0xff) {
+            int marker = jpeg[position + 1] & 0xff;
+            int segmentLength = readShort(jpeg, position + 2, true);
+            int tiff = position + 4 + EXIF_HEADER.length;
+            if (marker == APP1 && tiff + 8 <= length && startsWith(jpeg, position + 4, EXIF_HEADER)) {
+                int end = Math.min(length, position + 2 + segmentLength);
+                boolean bigEndian = jpeg[tiff] == 'M';
+                long ifd = tiff + readInt(jpeg, tiff + 4, bigEndian);
+                if (ifd + 2 > end)
+                    return 0;
+                int count = readShort(jpeg, (int) ifd, bigEndian);
+                for (int entry = (int) ifd + 2; count-- > 0 && entry + 12 <= end; entry += 12) {
+                    if (readShort(jpeg, entry, bigEndian) == TAG_ORIENTATION)
+                        return readShort(jpeg, entry + 8, bigEndian);
+                }
+                return 0;
+            }
+            position += 2 + segmentLength;
+        }
+        return 0;
+    }
+
+    private static int readShort(byte[] bytes, int offset, boolean bigEndian) {
+        int first = bytes[offset] & 0xff;
+        int second = bytes[offset + 1] & 0xff;
+        return bigEndian ? first << 8 | second : second << 8 | first;
+    }
+
+    private static long readInt(byte[] bytes, int offset, boolean bigEndian) {
+        long high = readShort(bytes, bigEndian ? offset : offset + 2, bigEndian);
+        long low = readShort(bytes, bigEndian ? offset + 2 : offset, bigEndian);
+        return high << 16 | low;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++)
+            if (bytes[offset + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Lays out SOI, the APP1 marker and the TIFF data in {@link #segment}
+     */
+    private void buildSegment() {
+        ifd0.clear();
+        exifIfd.clear();
+
+        byte[] dateTime = null;
+        if (hasTime) {
+            calendar.setTimeInMillis(timeNanos / 1000000L);
+            dateTime = ascii(String.format(Locale.US, "%04d:%02d:%02d %02d:%02d:%02d",
+                    calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                    calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+                    calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND)));
+        }
+
+        if (make != null)
+            ifd0.add(TAG_MAKE, ASCII_TYPE, make.length, make);
+        if (model != null)
+            ifd0.add(TAG_MODEL, ASCII_TYPE, model.length, model);
+        if (orientation != 0)
+            ifd0.add(TAG_ORIENTATION, SHORT, 1, shortValue(orientation));
+        if (dateTime != null)
+            ifd0.add(TAG_DATE_TIME, ASCII_TYPE, dateTime.length, dateTime);
+
+        if (exposureNanos > 0)
+            exifIfd.add(TAG_EXPOSURE_TIME, RATIONAL, 1,
+                    rational(Math.min(exposureNanos / 1000, 0xffffffffL), 1000000));
+        if (iso > 0)
+            exifIfd.add(TAG_ISO, SHORT, 1, shortValue(Math.min(iso, 0xffff)));
+        exifIfd.add(TAG_EXIF_VERSION, UNDEFINED, EXIF_VERSION.length, EXIF_VERSION);
+        if (dateTime != null) {
+            exifIfd.add(TAG_DATE_TIME_ORIGINAL, ASCII_TYPE, dateTime.length, dateTime);
+            int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET) +
+                    calendar.get(Calendar.DST_OFFSET)) / 60000;
+            byte[] offset = ascii(String.format(Locale.US, "%c%02d:%02d",
+                    offsetMinutes < 0 ? '-' : '+', Math.abs(offsetMinutes) / 60,
+                    Math.abs(offsetMinutes) % 60));
+            exifIfd.add(TAG_OFFSET_TIME_ORIGINAL, ASCII_TYPE, offset.length, offset);
+        }
+        if (focalLength > 0)
+            exifIfd.add(TAG_FOCAL_LENGTH, RATIONAL, 1, rational(Math.round(focalLength * 1000), 1000));
+        if (imageNumber >= 0)
+            exifIfd.add(TAG_IMAGE_NUMBER, LONG, 1, longValue(imageNumber));
+        if (dateTime != null) {
+            byte[] subSec = ascii(String.format(Locale.US, "%09d",
+                    timeNanos % 1000000000L));
+            exifIfd.add(TAG_SUB_SEC_TIME_ORIGINAL, ASCII_TYPE, subSec.length, subSec);
+        }
+
+        // Exif IFD goes straight after IFD0 and its values
+        int ifd0Start = 8;
+        int exifStart = ifd0Start + ifd0.tableSize() + 12 + ifd0.dataSize();
+        ifd0.add(TAG_EXIF_IFD, LONG, 1, longValue(exifStart));
+        int tiffLength = exifStart + exifIfd.tableSize() + exifIfd.dataSize();
+
+        segment.clear();
+        segment.put((byte) 0xff).put((byte) SOI);
+        segment.put((byte) 0xff).put((byte) APP1);
+        segment.putShort((short) (2 + EXIF_HEADER.length + tiffLength));
+        segment.put(EXIF_HEADER);
+        // Big endian TIFF header, IFD0 straight after it
+        segment.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0Start);
+        ifd0.write(segment, ifd0Start);
+        exifIfd.write(segment, exifStart);
+    }
+
+    /**
+     * NUL terminated ASCII, as EXIF wants its strings
+     */
+    private static byte[] ascii(String value) {
+        byte[] bytes = value.getBytes(ASCII);
+        byte[] terminated = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+        return terminated;
+    }
+
+    private static byte[] shortValue(int value) {
+        return new byte[] {(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] longValue(long value) {
+        return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                (byte) value};
+    }
+
+    private static byte[] rational(long numerator, long denominator) {
+        byte[] value = new byte[8];
+        System.arraycopy(longValue(numerator), 0, value, 0, 4);
+        System.arraycopy(longValue(denominator), 0, value, 4, 4);
+        return value;
+    }
+}
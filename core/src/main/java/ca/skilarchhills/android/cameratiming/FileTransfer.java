@@ -0,0 +1,36 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Moves image data from a file to the network with {@link FileChannel#transferTo},
+ * which lets the kernel copy straight from the page cache into the socket (sendfile)
+ * instead of bouncing every block through a Java heap buffer.
+ */
+final class FileTransfer {
+    /**
+     * Largest single transferTo call, some kernels cap sendfile well below 2GB anyway
+     */
+    private static final long MAX_CHUNK = 8 * 1024 * 1024;
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Sends count bytes of a file starting at position
+     * @throws EOFException if the file ends first
+     */
+    static void transfer(FileChannel source, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = source.transferTo(position, Math.min(end - position, MAX_CHUNK), target);
+            if (sent <= 0 && position >= source.size())
+                throw new EOFException("File truncated at " + position + " of " + end);
+            position += sent;
+        }
+    }
+}
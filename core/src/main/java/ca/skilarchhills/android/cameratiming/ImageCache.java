@@ -0,0 +1,238 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bytes of the newest pictures and thumbnails, exactly as saved, so the PCs' requests
+ * right after a finish are answered from memory instead of reading flash again.
+ *
+ * The writer records each picture on its way to storage and hands it over once it is in
+ * the catalog.  Pictures are kept in direct buffers, outside the Java heap, up to a limit
+ * on their bytes, and the least recently used go first.  A picture being sent is never overwritten:
+ * its buffer is only reused once the last sender has released it.
+ *
+ * Hits, misses and evicted bytes are counted, and served to the PCs with
+ * PC_REQUEST_CACHE_STATS.
+ */
+class ImageCache {
+    /**
+     * Size of the catalog's cache, about ten full size pictures
+     */
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    // Buffer sizes are rounded up to this so buffers can be reused for the next picture
+    private static final int GRANULE = 16 * 1024;
+
+    // Evicted buffers kept for reuse
+    private static final int MAX_SPARE = 4;
+
+    /**
+     * One cached picture or thumbnail
+     */
+    static final class Entry {
+        private final ByteBuffer buffer;
+        private int readers;
+        private boolean evicted;
+
+        private Entry(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * The bytes, in a view of their own that the caller may move through
+         */
+        ByteBuffer getData() {
+            return buffer.duplicate();
+        }
+    }
+
+    private final long maxBytes;
+
+    // Least recently used first, everything below is guarded by the cache's monitor
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayList<ByteBuffer> spare = new ArrayList<>();
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * @param maxBytes Most bytes of cached pictures, the buffers holding them are rounded up
+     *                 a little past that
+     */
+    ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int index, boolean thumbnail) {
+        return (long) index << 1 | (thumbnail ? 1 : 0);
+    }
+
+    /**
+     * A cached picture, to be handed back with {@link #release(Entry)} once sent
+     * @return The picture, or null if it isn't cached
+     */
+    synchronized Entry acquire(int index, boolean thumbnail) {
+        Entry entry = entries.get(key(index, thumbnail));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.readers++;
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        if (--entry.readers == 0 && entry.evicted)
+            recycle(entry.buffer);
+    }
+
+    /**
+     * Starts recording a picture as it is written to target
+     * @param maxLength Most bytes the picture can have, bigger pictures aren't cached
+     */
+    Output record(OutputStream target, long maxLength) {
+        return new Output(target, maxLength <= maxBytes ? reserve((int) maxLength) : null);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * An empty direct buffer of at least length bytes, best fit from the spares as long as
+     * that doesn't waste more than half of it
+     */
+    private synchronized ByteBuffer reserve(int length) {
+        int best = -1;
+        for (int i = 0; i < spare.size(); i++) {
+            int capacity = spare.get(i).capacity();
+            if (capacity >= length && capacity / 2 <= length &&
+                    (best < 0 || capacity < spare.get(best).capacity()))
+                best = i;
+        }
+        if (best >= 0)
+            return spare.remove(best);
+        return ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE - 8,
+                ((long) length + GRANULE - 1) / GRANULE * GRANULE));
+    }
+
+    /**
+     * Caches a recorded picture, evicting the least recently used to make room
+     */
+    private synchronized void put(long key, ByteBuffer buffer) {
+        // Counted in picture bytes, the same as evictedBytes
+        Entry old = entries.remove(key);
+        if (old != null) {
+            cachedBytes -= old.buffer.limit();
+            evict(old);
+        }
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (cachedBytes + buffer.limit() > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            cachedBytes -= entry.buffer.limit();
+            evict(entry);
+        }
+        if (cachedBytes + buffer.limit() > maxBytes) {
+            recycle(buffer);
+            return;
+        }
+
+        entries.put(key, new Entry(buffer));
+        cachedBytes += buffer.limit();
+    }
+
+    private void evict(Entry entry) {
+        evictedBytes.addAndGet(entry.buffer.limit());
+        entry.evicted = true;
+        if (entry.readers == 0)
+            recycle(entry.buffer);
+    }
+
+    private synchronized void recycle(ByteBuffer buffer) {
+        if (spare.size() < MAX_SPARE) {
+            buffer.clear();
+            spare.add(buffer);
+        }
+    }
+
+    /**
+     * Passes a picture through to where it's being saved, keeping a copy for the cache.
+     * Not thread safe.
+     */
+    class Output extends OutputStream {
+        private final OutputStream target;
+        private ByteBuffer buffer;
+
+        private Output(OutputStream target, ByteBuffer buffer) {
+            this.target = target;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+            if (buffer == null)
+                return;
+            if (buffer.hasRemaining())
+                buffer.put((byte) b);
+            else
+                discard();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            if (buffer == null)
+                return;
+            if (buffer.remaining() >= len) {
+                buffer.put(b, off, len);
+            } else {
+                // Bigger than promised, leave it out of the cache
+                discard();
+            }
+        }
+
+        /**
+         * Caches what was written as the picture, or thumbnail, at an index
+         */
+        void commit(int index, boolean thumbnail) {
+            if (buffer == null)
+                return;
+            buffer.flip();
+            put(key(index, thumbnail), buffer);
+            buffer = null;
+        }
+
+        /**
+         * Drops the copy, for a picture that didn't make it into the catalog
+         */
+        void discard() {
+            if (buffer != null)
+                recycle(buffer);
+            buffer = null;
+        }
+    }
+}
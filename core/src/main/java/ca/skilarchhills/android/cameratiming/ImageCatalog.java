@@ -0,0 +1,709 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persistent list of every picture taken, in the order they were saved.
+ *
+ * Backed by an append-only file of fixed size records (timestamp, offset, size, checksum,
+ * flags, thumbnail size), so an image's index is simply its record number and survives process death
+ * without rescanning the picture directory.  The file is read once, lazily, into chunks
+ * of primitive arrays; after that appends write one record and flag changes rewrite four
+ * bytes in place.  Images can be looked up by index or by timestamp.
+ *
+ * There is a single writer, the capture pipeline, and any number of client connections
+ * reading.  Readers never lock: a record is filled in first and then published by bumping
+ * the volatile {@link #published} count, and chunks never move once allocated.  Appends
+ * and delivery flags only contend with each other, so a slow PC can never hold up a
+ * picture being saved.
+ *
+ * A picture is only published once its record is written, and, with {@link #setSync},
+ * synced to storage.  The writer can batch several appends into one publish.
+ *
+ * Pictures are either files of their own in the picture directory or, with
+ * {@link #FLAG_STORED}, kept in the {@link SegmentStore}, in which case the offset is
+ * their location there and the thumbnail follows straight after the picture.  The catalog
+ * is the store's only index.
+ */
+class ImageCatalog {
+    private static final String TAG = "CameraTimingCatalog";
+    private static final String FILE_NAME = "catalog.dat";
+    private static final int MAGIC = 0x43544d43; // "CTMC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+    private static final int FLAGS_OFFSET = 24;
+
+    // Records per chunk, as a power of two
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * A PC has acknowledged the image
+     */
+    static final int FLAG_DELIVERED = 1;
+
+    /**
+     * Imported from an old {@code <millis>.jpg} file name
+     */
+    static final int FLAG_LEGACY_NAME = 2;
+
+    /**
+     * Kept in the segment store rather than a file of its own
+     */
+    static final int FLAG_STORED = 4;
+
+    private static final HashMap<File, ImageCatalog> catalogs = new HashMap<>();
+
+    /**
+     * A fixed block of records, never reallocated so readers can hold on to it
+     */
+    private static final class Chunk {
+        final long[] timestamps = new long[CHUNK_SIZE];
+        final long[] offsets = new long[CHUNK_SIZE];
+        final int[] sizes = new int[CHUNK_SIZE];
+        final int[] checksums = new int[CHUNK_SIZE];
+        final int[] flags = new int[CHUNK_SIZE];
+        final int[] thumbnailSizes = new int[CHUNK_SIZE];
+    }
+
+    /**
+     * Immutable snapshot of the first count indices sorted by timestamp
+     */
+    private static final class TimeIndex {
+        final int count;
+        final long[] times;
+        final int[] indices;
+
+        TimeIndex(int count, long[] times, int[] indices) {
+            this.count = count;
+            this.times = times;
+            this.indices = indices;
+        }
+    }
+
+    private final File dir;
+    private final TriggerLog triggers;
+    private final ImageCache cache = new ImageCache(ImageCache.DEFAULT_MAX_BYTES);
+
+    // Serialises opening, appends and flag writes, never taken by readers
+    private final Object writeLock = new Object();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer flag = ByteBuffer.allocate(4);
+    private FileChannel channel;
+    private volatile boolean opened;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int published;
+
+    // Records on file, ahead of published while a batch is open, and sync and batch state,
+    // all under the write lock
+    private int written;
+    private boolean sync;
+    private boolean batching;
+    private final AtomicReference<TimeIndex> timeIndex =
+            new AtomicReference<>(new TimeIndex(0, new long[0], new int[0]));
+
+    // Everything below this index has been delivered
+    private volatile int firstUndelivered;
+
+    // Location just past the last stored picture, and the store once it's been opened
+    private long storeEnd;
+    private volatile SegmentStore store;
+
+    // Threads in awaitIndex(), so the writer only notifies when someone is listening
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private ImageCatalog(File dir) {
+        this.dir = dir;
+        triggers = new TriggerLog(dir);
+    }
+
+    /**
+     * The catalog for a picture directory, shared by everything in the process.  Nothing
+     * is read from disk until it is first used.
+     */
+    static ImageCatalog get(File dir) {
+        synchronized (catalogs) {
+            ImageCatalog catalog = catalogs.get(dir);
+            if (catalog == null) {
+                catalog = new ImageCatalog(dir);
+                catalogs.put(dir, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Closes the catalog's files, and its segment store's, for when nothing will use it
+     * again.  The next {@link #get} for its directory loads it afresh.
+     */
+    void close() throws IOException {
+        synchronized (catalogs) {
+            if (catalogs.get(dir) == this)
+                catalogs.remove(dir);
+        }
+        synchronized (writeLock) {
+            try {
+                if (store != null)
+                    store.close();
+                triggers.close();
+            } finally {
+                if (channel != null)
+                    channel.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a newly saved picture
+     * @param checksum CRC32 of the file, 0 if unknown
+     * @return Index of the picture
+     */
+    int append(long timestampNanos, int size, int checksum) throws IOException {
+        return append(timestampNanos, 0, size, 0, checksum, 0);
+    }
+
+    /**
+     * Adds a picture newly written to the segment store
+     * @param location      Where it starts in the store
+     * @param thumbnailSize Size of the thumbnail following it, 0 if there isn't one
+     * @param checksum      CRC32 of the picture, 0 if unknown
+     * @return Index of the picture
+     */
+    int appendStored(long timestampNanos, long location, int size, int thumbnailSize,
+                     int checksum) throws IOException {
+        return append(timestampNanos, location, size, thumbnailSize, checksum, FLAG_STORED);
+    }
+
+    private int append(long timestampNanos, long offset, int size, int thumbnailSize,
+                       int checksum, int flags) throws IOException {
+        synchronized (writeLock) {
+            open();
+            int index = written;
+            writeRecord(index, timestampNanos, offset, size, checksum, flags, thumbnailSize);
+            add(index, timestampNanos, offset, size, checksum, flags, thumbnailSize);
+            written = index + 1;
+            if (!batching)
+                publishOrDrop();
+            return index;
+        }
+    }
+
+    /**
+     * Index the next picture appended will get
+     */
+    int nextIndex() throws IOException {
+        synchronized (writeLock) {
+            open();
+            return written;
+        }
+    }
+
+    /**
+     * Whether the catalog file is synced to storage before pictures are published, so a
+     * picture a PC has seen is never lost to a crash or a pulled battery
+     */
+    void setSync(boolean sync) {
+        synchronized (writeLock) {
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Holds back pictures appended from now on until {@link #commitBatch()}, so a burst
+     * costs one sync of the catalog rather than one per picture
+     */
+    void beginBatch() {
+        synchronized (writeLock) {
+            batching = true;
+        }
+    }
+
+    /**
+     * Publishes everything appended since {@link #beginBatch()}.  If that fails none of it
+     * is kept, the next appends reuse the indices.
+     */
+    void commitBatch() throws IOException {
+        synchronized (writeLock) {
+            batching = false;
+            publishOrDrop();
+        }
+    }
+
+    /**
+     * Publishes the records written so far, or drops them if they can't be synced, so the
+     * writer can report them failed without a later publish bringing them back.  Called
+     * with the write lock held.
+     */
+    private void publishOrDrop() throws IOException {
+        try {
+            publish();
+        } catch (IOException e) {
+            written = published;
+            try {
+                channel.truncate(HEADER_SIZE + (long) published * RECORD_SIZE);
+            } catch (IOException truncateFailure) {
+                truncateFailure.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the records written so far visible, syncing them first if asked to.  Called
+     * with the write lock held.
+     */
+    private void publish() throws IOException {
+        if (published == written)
+            return;
+        if (sync)
+            channel.force(false);
+        published = written;
+
+        if (waiters.get() > 0) {
+            synchronized (waiters) {
+                waiters.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Every trigger behind the pictures, including ones that shared a capture
+     */
+    TriggerLog getTriggers() {
+        return triggers;
+    }
+
+    /**
+     * The newest pictures' bytes, filled by the writer for the PCs to be sent from
+     */
+    ImageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Number of pictures in the catalog
+     */
+    int size() throws IOException {
+        ensureOpen();
+        return published;
+    }
+
+    /**
+     * The picture at an index, or null if there isn't one at that index yet
+     */
+    File getFile(int index) throws IOException {
+        ensureOpen();
+        if (index < 0 || index >= published)
+            return null;
+        Chunk chunk = chunks[index >>> CHUNK_BITS];
+        long timestamp = chunk.timestamps[index & CHUNK_MASK];
+        if ((chunk.flags[index & CHUNK_MASK] & FLAG_LEGACY_NAME) != 0)
+            return new File(dir, timestamp / 1000000 + ".jpg");
+        return new File(dir, ImageName.format(timestamp));
+    }
+
+    /**
+     * The segment store pictures can be written to instead of files, opened on first use
+     * to carry on where the last stored picture ends
+     */
+    SegmentStore getStore() throws IOException {
+        SegmentStore current = store;
+        if (current != null)
+            return current;
+        synchronized (writeLock) {
+            // Has to know where the stored pictures end, or it would write over them
+            open();
+            if (store == null)
+                store = new SegmentStore(new File(dir, SegmentStore.DIR_NAME), storeEnd);
+            return store;
+        }
+    }
+
+    /**
+     * Whether a picture is kept in the segment store rather than a file
+     */
+    boolean isStored(int index) throws IOException {
+        return (getFlags(index) & FLAG_STORED) != 0;
+    }
+
+    /**
+     * Location of a stored picture in the segment store
+     */
+    long getLocation(int index) throws IOException {
+        checkIndex(index);
+        return chunks[index >>> CHUNK_BITS].offsets[index & CHUNK_MASK];
+    }
+
+    /**
+     * Size in bytes of a picture as saved
+     */
+    int getSize(int index) throws IOException {
+        checkIndex(index);
+        return chunks[index >>> CHUNK_BITS].sizes[index & CHUNK_MASK];
+    }
+
+    /**
+     * Size of a stored picture's thumbnail, 0 if it has none
+     */
+    int getThumbnailSize(int index) throws IOException {
+        checkIndex(index);
+        return chunks[index >>> CHUNK_BITS].thumbnailSizes[index & CHUNK_MASK];
+    }
+
+    private int getFlags(int index) throws IOException {
+        checkIndex(index);
+        return chunks[index >>> CHUNK_BITS].flags[index & CHUNK_MASK];
+    }
+
+    private void checkIndex(int index) throws IOException {
+        ensureOpen();
+        if (index < 0 || index >= published)
+            throw new IndexOutOfBoundsException("No picture " + index);
+    }
+
+    /**
+     * Wall clock capture time of a picture in nanoseconds
+     */
+    long getTimestamp(int index) {
+        if (index < 0 || index >= published)
+            throw new IndexOutOfBoundsException("No picture " + index);
+        return chunks[index >>> CHUNK_BITS].timestamps[index & CHUNK_MASK];
+    }
+
+    /**
+     * Index of the picture taken at exactly this time, or -1
+     */
+    int find(long timestampNanos) throws IOException {
+        TimeIndex index = currentTimeIndex();
+        int pos = lowerBound(index, timestampNanos);
+        return pos < index.count && index.times[pos] == timestampNanos ? index.indices[pos] : -1;
+    }
+
+    /**
+     * Pictures taken between two times, both inclusive
+     * @return their indices in timestamp order, empty if there are none
+     */
+    int[] findRange(long fromNanos, long toNanos) throws IOException {
+        TimeIndex index = currentTimeIndex();
+        int first = lowerBound(index, fromNanos);
+        int last = toNanos == Long.MAX_VALUE ? index.count : lowerBound(index, toNanos + 1);
+        if (first >= last)
+            return new int[0];
+        return Arrays.copyOfRange(index.indices, first, last);
+    }
+
+    /**
+     * Index of the oldest picture no PC has acknowledged yet
+     */
+    int firstUndelivered() throws IOException {
+        ensureOpen();
+        return firstUndelivered;
+    }
+
+    /**
+     * Flags pictures as acknowledged by a PC
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     */
+    void markDelivered(int from, int to) {
+        synchronized (writeLock) {
+            try {
+                open();
+                int end = Math.min(to, published);
+                for (int i = Math.max(from, 0); i < end; i++) {
+                    int[] flags = chunks[i >>> CHUNK_BITS].flags;
+                    if ((flags[i & CHUNK_MASK] & FLAG_DELIVERED) != 0)
+                        continue;
+                    flags[i & CHUNK_MASK] |= FLAG_DELIVERED;
+                    flag.clear();
+                    flag.putInt(flags[i & CHUNK_MASK]).flip();
+                    channel.write(flag, HEADER_SIZE + (long) i * RECORD_SIZE + FLAGS_OFFSET);
+                }
+                advanceFirstUndelivered();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits until the picture at index has been added
+     * @param timeout Longest wait in milliseconds
+     */
+    void awaitIndex(int index, long timeout) throws InterruptedException, IOException {
+        ensureOpen();
+        if (index < published)
+            return;
+
+        waiters.incrementAndGet();
+        try {
+            synchronized (waiters) {
+                // Checked again under the monitor so a notify can't slip in between
+                if (index >= published)
+                    waiters.wait(timeout);
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * The sorted timestamp index, brought up to date with any pictures added since it was
+     * last used.  Pictures nearly always arrive in time order, so this is a sort of the few
+     * new ones and a merge.  Racing readers may both rebuild, either result is correct.
+     */
+    private TimeIndex currentTimeIndex() throws IOException {
+        ensureOpen();
+        TimeIndex current = timeIndex.get();
+        int count = published;
+        if (current.count >= count)
+            return current;
+
+        int added = count - current.count;
+        Integer[] order = new Integer[added];
+        final long[] newTimes = new long[added];
+        for (int i = 0; i < added; i++) {
+            newTimes[i] = getTimestamp(current.count + i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.compare(newTimes[lhs], newTimes[rhs]);
+            }
+        });
+
+        long[] times = new long[count];
+        int[] indices = new int[count];
+        int old = 0;
+        int out = 0;
+        for (Integer i : order) {
+            while (old < current.count && current.times[old] <= newTimes[i]) {
+                times[out] = current.times[old];
+                indices[out++] = current.indices[old++];
+            }
+            times[out] = newTimes[i];
+            indices[out++] = current.count + i;
+        }
+        while (old < current.count) {
+            times[out] = current.times[old];
+            indices[out++] = current.indices[old++];
+        }
+
+        TimeIndex updated = new TimeIndex(count, times, indices);
+        timeIndex.compareAndSet(current, updated);
+        return updated;
+    }
+
+    /**
+     * First position in the index whose timestamp is not less than the given one
+     */
+    private static int lowerBound(TimeIndex index, long timestampNanos) {
+        int low = 0;
+        int high = index.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.times[mid] < timestampNanos)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Loads the catalog if that hasn't been done yet.  A catalog that can't be read fails
+     * every call with the reason, rather than looking empty.
+     */
+    private void ensureOpen() throws IOException {
+        if (opened)
+            return;
+        synchronized (writeLock) {
+            open();
+        }
+    }
+
+    /**
+     * Loads the catalog on first use, importing the picture directory if there isn't one
+     * yet.  Called with the write lock held.
+     */
+    private void open() throws IOException {
+        if (opened)
+            return;
+
+        // The writer creates none before its first call here, so these are all from before
+        removeTemporaryFiles(dir);
+        removeTemporaryFiles(new File(dir, ImageName.THUMBNAIL_DIR));
+
+        File file = new File(dir, FILE_NAME);
+        boolean exists = file.exists();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            load(file, exists);
+        } catch (IOException e) {
+            // Tried again from the start on the next call
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        opened = true;
+    }
+
+    /**
+     * Deletes pictures and thumbnails whose write was cut short by a crash before being
+     * renamed into place.  Nothing refers to them, so they would otherwise never go.
+     */
+    private static void removeTemporaryFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File parent, String fileName) {
+                return ImageName.isTemporary(fileName);
+            }
+        });
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            if (!file.delete())
+                CoreLog.w(TAG, "Couldn't delete " + file);
+        }
+    }
+
+    private void load(File file, boolean exists) throws IOException {
+        if (!exists || channel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            importDirectory();
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("Unrecognised catalog " + file);
+
+        // Drop a record torn by a crash part way through an append
+        long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+
+        ByteBuffer data = ByteBuffer.allocate((int) (records * RECORD_SIZE));
+        while (data.hasRemaining() && channel.read(data, HEADER_SIZE + data.position()) > 0) {
+            // Keep reading
+        }
+        data.flip();
+        int index = 0;
+        while (data.remaining() >= RECORD_SIZE) {
+            long timestamp = data.getLong();
+            long offset = data.getLong();
+            int size = data.getInt();
+            int checksum = data.getInt();
+            int flags = data.getInt();
+            int thumbnailSize = data.getInt();
+            add(index++, timestamp, offset, size, checksum, flags, thumbnailSize);
+        }
+        published = index;
+        written = index;
+        advanceFirstUndelivered();
+    }
+
+    /**
+     * One off import of pictures saved before there was a catalog.  They count as delivered,
+     * as the old server only ever handed PCs pictures taken after they connected, so an
+     * upgrade doesn't replay a phone's whole history to the first PC to connect.
+     */
+    private void importDirectory() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File directory, String fileName) {
+                return ImageName.matches(fileName);
+            }
+        });
+        if (files == null)
+            return;
+
+        final long[] times = new long[files.length];
+        boolean[] legacy = new boolean[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            times[i] = ImageName.parseNanos(files[i].getName());
+            legacy[i] = !ImageName.format(times[i]).equals(files[i].getName());
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.compare(times[lhs], times[rhs]);
+            }
+        });
+
+        int index = 0;
+        for (Integer i : order) {
+            int flags = FLAG_DELIVERED | (legacy[i] ? FLAG_LEGACY_NAME : 0);
+            writeRecord(index, times[i], 0, (int) files[i].length(), 0, flags, 0);
+            add(index++, times[i], 0, (int) files[i].length(), 0, flags, 0);
+        }
+        published = index;
+        written = index;
+        advanceFirstUndelivered();
+    }
+
+    private void advanceFirstUndelivered() {
+        int first = firstUndelivered;
+        int count = published;
+        while (first < count &&
+                (chunks[first >>> CHUNK_BITS].flags[first & CHUNK_MASK] & FLAG_DELIVERED) != 0)
+            first++;
+        firstUndelivered = first;
+    }
+
+    private void writeRecord(int index, long timestamp, long offset, int size, int checksum,
+                             int flags, int thumbnailSize) throws IOException {
+        record.clear();
+        record.putLong(timestamp).putLong(offset).putInt(size).putInt(checksum).putInt(flags)
+                .putInt(thumbnailSize);
+        record.flip();
+        long position = HEADER_SIZE + (long) index * RECORD_SIZE;
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+    }
+
+    /**
+     * Fills in a record ahead of it being published, growing the chunk table if needed
+     */
+    private void add(int index, long timestamp, long offset, int size, int checksum, int flags,
+                     int thumbnailSize) {
+        int chunkIndex = index >>> CHUNK_BITS;
+        Chunk[] table = chunks;
+        if (chunkIndex >= table.length) {
+            // Readers holding the old table still see the same chunks
+            table = Arrays.copyOf(table, Math.max(4, table.length * 2));
+            for (int i = chunkIndex; i < table.length; i++)
+                table[i] = new Chunk();
+            chunks = table;
+        }
+        Chunk chunk = table[chunkIndex];
+        int slot = index & CHUNK_MASK;
+        chunk.timestamps[slot] = timestamp;
+        chunk.offsets[slot] = offset;
+        chunk.sizes[slot] = size;
+        chunk.checksums[slot] = checksum;
+        chunk.flags[slot] = flags;
+        chunk.thumbnailSizes[slot] = thumbnailSize;
+        if ((flags & FLAG_STORED) != 0)
+            storeEnd = Math.max(storeEnd, offset + size + thumbnailSize);
+    }
+}
@@ -0,0 +1,74 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Naming scheme for saved pictures.
+ *
+ * Pictures are named after their wall clock capture time as {@code <millis>.<nanos>.jpg},
+ * where the six digit nanos field holds the sub-millisecond part.  Pictures from older
+ * versions are just {@code <millis>.jpg}, which still parses with zero nanos.
+ */
+final class ImageName {
+    /**
+     * Subdirectory holding a small preview of every picture, under the same name
+     */
+    static final String THUMBNAIL_DIR = "thumbs";
+
+    /**
+     * Added to a picture's name while it is being written, until it is renamed into place
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Pattern PATTERN = Pattern.compile("(\\d+)(?:\\.(\\d{6}))?\\.jpg");
+
+    private ImageName() {
+    }
+
+    /**
+     * File name for a picture taken at the given wall clock time
+     */
+    static String format(long wallNanos) {
+        return String.format(Locale.US, "%d.%06d.jpg", wallNanos / 1000000, wallNanos % 1000000);
+    }
+
+    /**
+     * Whether a file name is one of our pictures
+     */
+    static boolean matches(String fileName) {
+        return PATTERN.matcher(fileName).matches();
+    }
+
+    /**
+     * Whether a file name is one of our pictures left part written
+     */
+    static boolean isTemporary(String fileName) {
+        return fileName.endsWith(TEMP_SUFFIX) &&
+                matches(fileName.substring(0, fileName.length() - TEMP_SUFFIX.length()));
+    }
+
+    /**
+     * Wall clock time in nanoseconds encoded in a picture's file name
+     * @return time, or 0 if the name isn't one of ours
+     */
+    static long parseNanos(String fileName) {
+        Matcher matcher = PATTERN.matcher(fileName);
+        if (!matcher.matches())
+            return 0;
+
+        long nanos = Long.parseLong(matcher.group(1)) * 1000000;
+        if (matcher.group(2) != null)
+            nanos += Long.parseLong(matcher.group(2));
+        return nanos;
+    }
+
+    /**
+     * Where the thumbnail of a picture lives, whether or not it has one
+     */
+    static File thumbnailFor(File picture) {
+        return new File(new File(picture.getParentFile(), THUMBNAIL_DIR), picture.getName());
+    }
+}
@@ -0,0 +1,216 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the pictures in a catalog to PCs.  Every PC gets its own thread from a bounded
+ * pool, and its delivery progress is kept across reconnects from the same address.
+ * Knows nothing about Android, so it can be driven over loopback on a plain JVM.
+ *
+ * A PC has one connection at a time.  One that reconnects, say after its network dropped
+ * without either end seeing a FIN, replaces its old connection, which would otherwise
+ * hold a thread until keepalive gave up on it hours later.
+ */
+class ImageServer implements QualityController.Backlog {
+    private static final String TAG = "CameraTimingSocket";
+
+    // How long a reconnecting PC waits for the threads of its old connections
+    private static final long REPLACE_WAIT_MS = 1000;
+    private static final long REPLACE_POLL_MS = 10;
+
+    private final ImageCatalog catalog;
+    private final ThreadPoolExecutor clientExecutor;
+    private final Set<ClientConnection> connections =
+            Collections.synchronizedSet(new HashSet<ClientConnection>());
+
+    // Delivery progress of each PC, kept across reconnects
+    private final HashMap<InetAddress, ClientConnection.ClientState> clientStates = new HashMap<>();
+
+    private volatile boolean closing = false;
+    private volatile ServerSocketChannel listener;
+
+    ImageServer(ImageCatalog catalog, int maxClients) {
+        this.catalog = catalog;
+        clientExecutor = new ThreadPoolExecutor(maxClients, maxClients, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        QualityController.get().setBacklog(this);
+    }
+
+    /**
+     * Accepts PCs on an already bound channel until it fails or the server is closed.
+     * The channel is closed on the way out.
+     */
+    void serve(ServerSocketChannel serverChannel) throws IOException {
+        listener = serverChannel;
+        try {
+            while (!closing) {
+                CoreLog.d(TAG, "Waiting for client to connect");
+                SocketChannel socketChannel = serverChannel.accept();
+                acceptClient(socketChannel);
+            }
+        } catch (IOException e) {
+            // Closing the listener is how close() stops the accept loop
+            if (!closing)
+                throw e;
+        } finally {
+            closeListener();
+        }
+    }
+
+    /**
+     * Stops accepting, drops every PC and lets the client threads finish
+     */
+    void close() {
+        closing = true;
+        closeListener();
+        synchronized (connections) {
+            for (ClientConnection connection : connections)
+                connection.close();
+        }
+        clientExecutor.shutdown();
+        QualityController.get().clearBacklog(this);
+    }
+
+    /**
+     * Pictures the connected PC furthest behind has yet to get to, 0 with none connected.
+     * Goes by each PC's position rather than the catalog's delivered flags, which stay
+     * stuck at any picture every PC skipped.
+     */
+    @Override
+    public int backlog() throws IOException {
+        int count = catalog.size();
+        int backlog = 0;
+        synchronized (connections) {
+            for (ClientConnection connection : connections)
+                backlog = Math.max(backlog, count - connection.getState().getPosition());
+        }
+        return backlog;
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Delivery progress for the PC at an address, created on its first connection.  A new
+     * PC starts at the oldest picture no PC has acknowledged yet, even from before a restart.
+     */
+    private ClientConnection.ClientState getClientState(InetAddress address) throws IOException {
+        synchronized (clientStates) {
+            ClientConnection.ClientState state = clientStates.get(address);
+            if (state == null) {
+                state = new ClientConnection.ClientState(catalog.firstUndelivered());
+                clientStates.put(address, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Hands a new PC to the client pool, or turns it away if the pool is full
+     */
+    private void acceptClient(SocketChannel socketChannel) throws IOException {
+        InetAddress address = socketChannel.socket().getInetAddress();
+        ClientConnection.ClientState state;
+        try {
+            state = getClientState(address);
+        } catch (IOException e) {
+            // Nothing to serve it from, but keep listening in case the catalog comes back
+            e.printStackTrace();
+            CoreLog.e(TAG, "Catalog unavailable, turning away " + address + ": " + e.getMessage());
+            socketChannel.close();
+            return;
+        }
+        final ClientConnection connection = new ClientConnection(socketChannel, catalog, state);
+        boolean replaced = closeConnectionsFrom(address);
+        long deadline = System.nanoTime() / 1000000 + REPLACE_WAIT_MS;
+        connections.add(connection);
+        while (true) {
+            try {
+                clientExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            connection.run();
+                        } finally {
+                            connections.remove(connection);
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // The threads of replaced connections free up as soon as they see the close
+                if (!replaced || closing || System.nanoTime() / 1000000 > deadline) {
+                    CoreLog.w(TAG, "Too many clients, turning away " + address);
+                    connections.remove(connection);
+                    socketChannel.close();
+                    return;
+                }
+                try {
+                    Thread.sleep(REPLACE_POLL_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    replaced = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connections a PC already has
+     * @return Whether there were any
+     */
+    private boolean closeConnectionsFrom(InetAddress address) {
+        boolean found = false;
+        synchronized (connections) {
+            for (ClientConnection connection : connections) {
+                if (address.equals(connection.getInetAddress())) {
+                    CoreLog.i(TAG, "Replacing connection " + connection.getRemoteAddress());
+                    connection.close();
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /* Closes the listening socket */
+    private void closeListener() {
+        try {
+            ServerSocketChannel channel = listener;
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Addresses of the connected PCs, comma separated
+     */
+    String getClientAddresses() {
+        StringBuilder clients = new StringBuilder();
+        synchronized (connections) {
+            for (ClientConnection connection : connections) {
+                if (clients.length() > 0)
+                    clients.append(", ");
+                clients.append(connection.getRemoteAddress());
+            }
+        }
+        return clients.toString();
+    }
+
+    boolean isConnected() {
+        return !connections.isEmpty();
+    }
+}
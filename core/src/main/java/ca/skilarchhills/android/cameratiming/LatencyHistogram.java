@@ -0,0 +1,104 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations, cheap enough to record on every picture.
+ *
+ * Laid out like HdrHistogram: values in microseconds are bucketed by power of two, and
+ * each power of two is split into {@link #SUB_BUCKETS} linear sub-buckets, so any value
+ * is off by at most 1/16th.  Recording is an index calculation and two atomic adds,
+ * and concurrent writers never wait on each other.  Readers get a consistent enough
+ * view for live percentiles without stopping the writers.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Enough powers of two for over a day in microseconds
+    private static final int MAX_EXPONENT = 37;
+
+    private final String name;
+    private final AtomicLongArray counts =
+            new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Adds one duration, negative ones are counted as zero
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(indexOf(micros));
+        total.incrementAndGet();
+
+        long currentMax;
+        while (micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros)) {
+            // Lost a race with another writer, try again
+        }
+    }
+
+    long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Largest value recorded in microseconds, exact
+     */
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Value in microseconds that the given fraction of recordings are at or below
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the upper edge of the bucket holding that value, 0 if nothing is recorded
+     */
+    long getPercentileMicros(double fraction) {
+        long count = total.get();
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperEdge(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Bucket for a value: the first SUB_BUCKETS values map to themselves, after that the
+     * top SUB_BUCKET_BITS + 1 bits pick the bucket
+     */
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value that falls in a bucket
+     */
+    static long upperEdge(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,34 @@
+package ca.skilarchhills.android.cameratiming;
+
+/**
+ * Latency histograms for every step between the photo eye and the PC.  Position in
+ * {@link #ALL} is the id a histogram is reported under by PC_REQUEST_STATS.
+ */
+final class Metrics {
+    // Key press to our handler running
+    static final LatencyHistogram KEY_EVENT = new LatencyHistogram("key event");
+    // Trigger to frame grabbed
+    static final LatencyHistogram GRAB = new LatencyHistogram("grab");
+    // Waiting for the encoder
+    static final LatencyHistogram QUEUE = new LatencyHistogram("queue");
+    static final LatencyHistogram ENCODE = new LatencyHistogram("encode");
+    // Writing and closing the JPEG
+    static final LatencyHistogram DISK = new LatencyHistogram("disk");
+    // Thumbnail, the EXIF segment is written along with the JPEG
+    static final LatencyHistogram EXIF = new LatencyHistogram("exif");
+    // Trigger to picture in the catalog
+    static final LatencyHistogram TOTAL = new LatencyHistogram("total");
+    // Header and file onto the socket
+    static final LatencyHistogram SEND = new LatencyHistogram("send");
+    // End of the send to the PC's ACK
+    static final LatencyHistogram ACK = new LatencyHistogram("ack");
+    // Syncing and renaming a group of pictures, up to their publishing
+    static final LatencyHistogram SYNC = new LatencyHistogram("sync");
+
+    static final LatencyHistogram[] ALL = {
+            KEY_EVENT, GRAB, QUEUE, ENCODE, DISK, EXIF, TOTAL, SEND, ACK, SYNC
+    };
+
+    private Metrics() {
+    }
+}
@@ -0,0 +1,22 @@
+package ca.skilarchhills.android.cameratiming;
+
+/**
+ * Hands out capture times for pictures grabbed from the preview.
+ *
+ * A picture is named after the time of the frame it shows, but two triggers can land on
+ * the same frame, say a second runner a few milliseconds behind the first.  Each gets a
+ * copy of the frame under a time of its own, a nanosecond past the last one handed out,
+ * so neither overwrites the other and the catalog keeps one record per file.
+ */
+class PictureTimes {
+    private long last = Long.MIN_VALUE;
+
+    /**
+     * Capture time for a picture of the frame at a given wall clock time
+     * @return the frame time, or just past the last time handed out if it was taken
+     */
+    synchronized long next(long frameNanos) {
+        last = frameNanos > last ? frameNanos : last + 1;
+        return last;
+    }
+}
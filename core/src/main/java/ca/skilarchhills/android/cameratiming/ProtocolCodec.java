@@ -0,0 +1,83 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the PC protocol, where every field is a big endian 8 byte long.
+ *
+ * Reads go through a buffered {@link DataInputStream}, so a long is a single bounded
+ * copy out of the buffer.  Writes are assembled in one preallocated {@link ByteBuffer}
+ * and handed to the stream in a single call, so an image header is one write instead
+ * of four.  Nothing is allocated per message.
+ *
+ * Read timeouts come from the socket itself (see {@link java.net.Socket#setSoTimeout(int)}),
+ * a blocked read then fails with a {@link java.net.SocketTimeoutException}.
+ */
+class ProtocolCodec {
+    /**
+     * Number of longs in an image header: command, index, timestamp, length
+     */
+    static final int HEADER_LONGS = 4;
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ByteBuffer frame = ByteBuffer.allocate(HEADER_LONGS * 8);
+
+    ProtocolCodec(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = out;
+    }
+
+    /**
+     * Reads the next long, blocking until all 8 bytes arrive
+     * @throws java.io.EOFException if the stream ends part way
+     */
+    long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    /**
+     * Whether there is input that can be read without blocking
+     */
+    boolean hasPending() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Writes a single long, e.g. a reply code
+     */
+    void writeLong(long value) throws IOException {
+        frame.clear();
+        frame.putLong(value);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    /**
+     * Writes a whole image header in one go
+     */
+    void writeHeader(long command, long index, long timestamp, long length) throws IOException {
+        frame.clear();
+        frame.putLong(command);
+        frame.putLong(index);
+        frame.putLong(timestamp);
+        frame.putLong(length);
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.IOException;
+
+/**
+ * Trades picture quality for latency when the PCs fall behind.
+ *
+ * Keeps running averages of encode time, bytes per picture and the rate pictures actually
+ * leave over the network.  From those and the number of pictures still waiting for a PC
+ * it predicts how long a new picture will take to arrive.  While that is over
+ * {@link #TARGET_LATENCY_MS} the JPEG quality is stepped down, then the resolution, and
+ * once the backlog has drained they are restored in the reverse order.
+ */
+class QualityController {
+    /**
+     * Bounds and step of the JPEG quality
+     */
+    static final int MAX_QUALITY = 95;
+    static final int MIN_QUALITY = 60;
+    private static final int QUALITY_STEP = 5;
+
+    /**
+     * Bounds and step of the scale applied to the picture's sides
+     */
+    static final float MIN_SCALE = 0.5f;
+    private static final float SCALE_STEP = 0.125f;
+
+    /**
+     * Time from trigger to picture on the PC we aim to stay under
+     */
+    static final long TARGET_LATENCY_MS = 2000;
+
+    // Weight of each new sample in the running averages
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Counts the pictures still waiting for the PCs, implemented by whatever serves them
+     */
+    interface Backlog {
+        int backlog() throws IOException;
+    }
+
+    private static QualityController instance;
+
+    private Backlog backlog;
+
+    private double encodeMillis;
+    private double bytesPerPicture;
+    // Bytes per millisecond, 0 until a picture has been sent
+    private double sendRate;
+
+    private int quality = MAX_QUALITY;
+    private float scale = 1;
+
+    /**
+     * The controller shared by the capture pipeline and the PC connections
+     */
+    static synchronized QualityController get() {
+        if (instance == null)
+            instance = new QualityController();
+        return instance;
+    }
+
+    /**
+     * Records how long a picture took to encode and how big it came out
+     */
+    synchronized void onEncoded(long nanos, int bytes) {
+        encodeMillis = average(encodeMillis, nanos / 1e6);
+        bytesPerPicture = average(bytesPerPicture, bytes);
+    }
+
+    /**
+     * Records a picture sent to a PC
+     */
+    synchronized void onSent(long bytes, long nanos) {
+        if (nanos > 0)
+            sendRate = average(sendRate, bytes / (nanos / 1e6));
+    }
+
+    /**
+     * Predicted milliseconds until a picture taken now reaches a PC
+     * @param backlog Pictures waiting to be delivered ahead of it
+     */
+    synchronized double predictLatency(int backlog) {
+        if (sendRate <= 0)
+            return encodeMillis;
+        return encodeMillis + (backlog + 1) * bytesPerPicture / sendRate;
+    }
+
+    /**
+     * Where {@link #update()} gets the backlog from
+     */
+    synchronized void setBacklog(Backlog backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Stops taking the backlog from a source, unless another one has replaced it already
+     */
+    synchronized void clearBacklog(Backlog backlog) {
+        if (this.backlog == backlog)
+            this.backlog = null;
+    }
+
+    /**
+     * Steps quality and scale using the backlog of whatever is serving the PCs, an empty
+     * one if nothing is
+     */
+    void update() throws IOException {
+        Backlog source;
+        synchronized (this) {
+            source = backlog;
+        }
+        update(source != null ? source.backlog() : 0);
+    }
+
+    /**
+     * Steps quality and scale one notch towards meeting the latency target
+     * @param backlog Pictures waiting to be delivered
+     */
+    synchronized void update(int backlog) {
+        double latency = predictLatency(backlog);
+        if (latency > TARGET_LATENCY_MS) {
+            if (quality > MIN_QUALITY)
+                quality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+            else if (scale > MIN_SCALE)
+                scale = Math.max(MIN_SCALE, scale - SCALE_STEP);
+        } else if (latency < TARGET_LATENCY_MS / 2) {
+            // Well clear of the target, the gap stops it flapping around the threshold
+            if (scale < 1)
+                scale = Math.min(1, scale + SCALE_STEP);
+            else if (quality < MAX_QUALITY)
+                quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+        }
+    }
+
+    synchronized int getQuality() {
+        return quality;
+    }
+
+    synchronized float getScale() {
+        return scale;
+    }
+
+    private static double average(double current, double sample) {
+        return current == 0 ? sample : current + SMOOTHING * (sample - current);
+    }
+}
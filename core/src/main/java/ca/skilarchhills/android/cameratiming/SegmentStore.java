@@ -0,0 +1,298 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Append-only storage that packs pictures into a few large segment files instead of
+ * creating a file per picture, which gets slow on FAT and sdcardfs once a season's worth
+ * of pictures has piled up in one directory.
+ *
+ * Segments are preallocated to a fixed size and filled front to back; a picture that
+ * doesn't fit in what's left of one starts the next.  The next segment is allocated on a
+ * thread of its own while the current one fills, so rolling over doesn't hold the writer
+ * up for the allocation.  A picture's location is its segment
+ * number in the top 32 bits and its position in the bottom ones.  The store keeps no index
+ * of its own: the {@link ImageCatalog} records every location, and says where appending
+ * carries on after a restart, so anything written but never added to the catalog is simply
+ * overwritten.
+ *
+ * There is one writer.  Readers send straight from channels that stay open, with
+ * transferTo at an absolute position, so they never move a file position or block each
+ * other.
+ */
+class SegmentStore {
+    /**
+     * Subdirectory of the picture directory holding the segments
+     */
+    static final String DIR_NAME = "segments";
+
+    /**
+     * Size of new segments unless set otherwise
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private final File dir;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // Open channels by segment number, the array is replaced as it grows
+    private final Object channelLock = new Object();
+    private volatile FileChannel[] channels = new FileChannel[0];
+
+    // Where the next picture goes, and the first segment written since the last sync, only
+    // touched by the writer
+    private int segment;
+    private long position;
+    private int firstUnsynced = -1;
+
+    // Highest segment allocated ahead of the writer, and the thread allocating it
+    private int prepared = -1;
+    private volatile Thread preparing;
+
+    // Set by close(), stops segments being allocated ahead
+    private boolean closed;
+
+    /**
+     * @param dir Directory holding the segments
+     * @param end Location just past the last picture kept, 0 for an empty store
+     */
+    SegmentStore(File dir, long end) {
+        this.dir = dir;
+        segment = segmentOf(end);
+        position = positionOf(end);
+    }
+
+    /**
+     * Size of segments created from now on, existing ones keep theirs
+     */
+    void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    static long location(int segment, long position) {
+        return (long) segment << 32 | position;
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static long positionOf(long location) {
+        return location & 0xffffffffL;
+    }
+
+    /**
+     * Starts adding a picture, moving on to a new segment if maxLength bytes might not fit
+     * in this one.  Nothing is kept until the output is committed, and writing more than
+     * maxLength fails.
+     */
+    Output append(long maxLength) throws IOException {
+        if (maxLength > segmentSize)
+            throw new IOException("Picture of " + maxLength + " bytes won't fit a segment");
+        FileChannel channel = channel(segment);
+        if (position + maxLength > channel.size()) {
+            segment++;
+            position = 0;
+            channel = channel(segment);
+        }
+        if (firstUnsynced < 0)
+            firstUnsynced = segment;
+        prepareNext();
+        return new Output(channel, location(segment, position), maxLength);
+    }
+
+    /**
+     * Starts allocating the segment after the one being filled, unless that's under way
+     */
+    private void prepareNext() {
+        final int next = segment + 1;
+        if (prepared >= next)
+            return;
+        prepared = next;
+        preparing = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    synchronized (channelLock) {
+                        if (!closed)
+                            open(next);
+                    }
+                } catch (IOException e) {
+                    // The writer tries again when it gets there
+                    e.printStackTrace();
+                }
+            }
+        }, "SegmentPreallocator");
+        preparing.start();
+    }
+
+    /**
+     * Flushes everything appended since the last sync to storage.  Segments are
+     * preallocated, so this only has to write data, not file sizes or block maps.
+     */
+    void sync() throws IOException {
+        if (firstUnsynced < 0)
+            return;
+        for (int i = firstUnsynced; i <= segment; i++)
+            channel(i).force(false);
+        firstUnsynced = -1;
+    }
+
+    /**
+     * Closes every segment, for when nothing will read or write the store again
+     */
+    void close() throws IOException {
+        Thread thread = preparing;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (channelLock) {
+            closed = true;
+            IOException failure = null;
+            for (FileChannel channel : channels) {
+                try {
+                    if (channel != null)
+                        channel.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            channels = new FileChannel[0];
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Sends count bytes starting at a location
+     */
+    void transfer(long location, long count, WritableByteChannel target) throws IOException {
+        FileTransfer.transfer(channel(segmentOf(location)), positionOf(location), count, target);
+    }
+
+    /**
+     * The channel of a segment, creating and preallocating the segment if it's new
+     */
+    private FileChannel channel(int number) throws IOException {
+        FileChannel[] table = channels;
+        if (number < table.length && table[number] != null)
+            return table[number];
+
+        synchronized (channelLock) {
+            return open(number);
+        }
+    }
+
+    /**
+     * Opens a segment, creating and preallocating it if it's new.  Needs channelLock.
+     */
+    private FileChannel open(int number) throws IOException {
+        FileChannel[] table = channels;
+        if (number < table.length && table[number] != null)
+            return table[number];
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        File file = new File(dir, String.format(Locale.US, "%05d.seg", number));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() == 0) {
+            // Claim the space up front, so filling the segment never grows the file
+            raf.setLength(segmentSize);
+        }
+
+        FileChannel channel = raf.getChannel();
+        if (number >= table.length)
+            table = Arrays.copyOf(table, Math.max(number + 1, table.length * 2));
+        else
+            table = table.clone();
+        table[number] = channel;
+        channels = table;
+        return channel;
+    }
+
+    /**
+     * Writes one picture, and its thumbnail, into a segment
+     */
+    class Output extends OutputStream {
+        private final FileChannel channel;
+        private final long start;
+        private final long maxLength;
+        private final ByteBuffer single = ByteBuffer.allocate(1);
+        private long written;
+
+        private Output(FileChannel channel, long start, long maxLength) {
+            this.channel = channel;
+            this.start = start;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Where the picture starts
+         */
+        long getLocation() {
+            return start;
+        }
+
+        /**
+         * Bytes written so far
+         */
+        long size() {
+            return written;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single.clear();
+            single.put((byte) b).flip();
+            write(single);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            int len = buffer.remaining();
+            if (written + len > maxLength)
+                throw new IOException("Picture overran the " + maxLength + " bytes it asked for");
+            long at = positionOf(start) + written;
+            if (at + len > channel.size())
+                throw new IOException("Picture overran its segment");
+            while (buffer.hasRemaining())
+                at += channel.write(buffer, at);
+            written += len;
+        }
+
+        /**
+         * Keeps what was written, the next picture goes after it
+         */
+        void commit() {
+            position = positionOf(start) + written;
+        }
+
+        /**
+         * Gives the space back, for a picture that won't make it into the catalog.  Once
+         * committed, everything appended after it goes too, which is only right if none of
+         * that is published either.
+         */
+        void abort() {
+            if (location(segment, position) <= start)
+                return;
+            segment = segmentOf(start);
+            position = positionOf(start);
+            if (firstUnsynced > segment)
+                firstUnsynced = segment;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ca.skilarchhills.android.cameratiming;
+
+/**
+ * Decides which triggers get a capture of their own.
+ *
+ * A bouncing photo eye contact, or two runners crossing a few milliseconds apart, fires
+ * several triggers that would all capture the same frames.  The first trigger starts a
+ * capture and opens a window; triggers inside the window join that capture instead of
+ * starting another.  The window is measured from the first trigger, not slid along by
+ * each new one, so a contact that keeps bouncing still gets a capture per window.
+ *
+ * Times are in any one monotonic time base, the caller's choice.
+ */
+class TriggerCoalescer {
+    private long windowNanos;
+    private boolean open;
+    private long burstStart;
+
+    /**
+     * @param windowNanos How long after a capture starts further triggers join it, 0 to
+     *                    give every trigger its own capture
+     */
+    TriggerCoalescer(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    synchronized void setWindow(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Handles one trigger
+     * @return Whether it starts a new capture, otherwise it joins the one at
+     *         {@link #getBurstStart()}
+     */
+    synchronized boolean offer(long triggerNanos) {
+        // Events can be dispatched slightly out of order, so either side of the start counts
+        if (open && windowNanos > 0 && Math.abs(triggerNanos - burstStart) <= windowNanos)
+            return false;
+        open = true;
+        burstStart = triggerNanos;
+        return true;
+    }
+
+    /**
+     * Time of the trigger that started the latest capture
+     */
+    synchronized long getBurstStart() {
+        return burstStart;
+    }
+}
@@ -0,0 +1,135 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Every trigger the phone has seen, kept next to the {@link ImageCatalog}.
+ *
+ * Triggers close together share one capture, so the pictures alone don't say how many
+ * runners crossed.  Each trigger is logged with its own wall clock time and the time of
+ * the trigger that started its capture, which is what the pictures are matched against.
+ * An append-only file of 16 byte records; triggers are rare next to pictures, so a plain
+ * lock is fine.
+ */
+class TriggerLog {
+    private static final String FILE_NAME = "triggers.dat";
+    private static final int MAGIC = 0x43544d54; // "CTMT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+
+    private final File dir;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel channel;
+    private long[] times = new long[64];
+    private long[] bursts = new long[64];
+    private int count;
+
+    TriggerLog(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Logs a trigger
+     * @param timeNanos  Wall clock time of the trigger
+     * @param burstNanos Wall clock time of the trigger that started its capture, the same
+     *                   as timeNanos if this one did
+     * @return Index of the trigger
+     */
+    synchronized int append(long timeNanos, long burstNanos) throws IOException {
+        open();
+        record.clear();
+        record.putLong(timeNanos).putLong(burstNanos).flip();
+        long position = HEADER_SIZE + (long) count * RECORD_SIZE;
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+        add(timeNanos, burstNanos);
+        return count - 1;
+    }
+
+    synchronized int size() throws IOException {
+        open();
+        return count;
+    }
+
+    /**
+     * Wall clock time of a trigger in nanoseconds
+     */
+    synchronized long getTime(int index) throws IOException {
+        checkIndex(index);
+        return times[index];
+    }
+
+    /**
+     * Wall clock time of the trigger that started this one's capture
+     */
+    synchronized long getBurst(int index) throws IOException {
+        checkIndex(index);
+        return bursts[index];
+    }
+
+    synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    private void checkIndex(int index) throws IOException {
+        open();
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("No trigger " + index);
+    }
+
+    private void add(long timeNanos, long burstNanos) {
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+            bursts = Arrays.copyOf(bursts, count * 2);
+        }
+        times[count] = timeNanos;
+        bursts[count] = burstNanos;
+        count++;
+    }
+
+    /**
+     * Loads the log on first use, called with the lock held
+     */
+    private void open() throws IOException {
+        if (channel != null)
+            return;
+
+        File file = new File(dir, FILE_NAME);
+        FileChannel opened = new RandomAccessFile(file, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (opened.size() < HEADER_SIZE) {
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            opened.truncate(0);
+            opened.write(header, 0);
+            channel = opened;
+            return;
+        }
+
+        opened.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            opened.close();
+            throw new IOException("Unrecognised trigger log " + file);
+        }
+
+        // Drop a record torn by a crash part way through an append
+        long records = (opened.size() - HEADER_SIZE) / RECORD_SIZE;
+        opened.truncate(HEADER_SIZE + records * RECORD_SIZE);
+
+        ByteBuffer data = ByteBuffer.allocate((int) (records * RECORD_SIZE));
+        while (data.hasRemaining() && opened.read(data, HEADER_SIZE + data.position()) > 0) {
+            // Keep reading
+        }
+        data.flip();
+        while (data.remaining() >= RECORD_SIZE)
+            add(data.getLong(), data.getLong());
+        channel = opened;
+    }
+}
@@ -0,0 +1,75 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the encode buffer pool
+ */
+public class BufferPoolTest {
+    private static final int KB = 1024;
+
+    @Test
+    public void steadyStateStopsAllocating() {
+        BufferPool pool = new BufferPool(16 * 1024 * KB);
+        BufferPool.Output output = pool.new Output(256 * KB);
+        byte[] picture = new byte[900 * KB];
+        new Random(1).nextBytes(picture);
+
+        // A few pictures in flight at once, like the queues between the stages
+        byte[][] inFlight = new byte[4][];
+        for (int round = 0; round < 50; round++) {
+            int slot = round % inFlight.length;
+            pool.release(inFlight[slot]);
+            output.write(picture, 0, picture.length - round);
+            int length = output.size();
+            inFlight[slot] = output.take();
+            assertEquals(picture.length - round, length);
+            assertArrayEquals(Arrays.copyOf(picture, length), Arrays.copyOf(inFlight[slot], length));
+        }
+
+        // Growing the first buffers and filling the queue allocates, after that nothing does
+        long allocations = pool.getAllocations();
+        for (int round = 0; round < 50; round++) {
+            int slot = round % inFlight.length;
+            pool.release(inFlight[slot]);
+            output.write(picture, 0, picture.length);
+            inFlight[slot] = output.take();
+        }
+        assertEquals(allocations, pool.getAllocations());
+        assertTrue(pool.getReuses() >= 50);
+    }
+
+    @Test
+    public void handsOutBestFit() {
+        BufferPool pool = new BufferPool(16 * 1024 * KB);
+        byte[] small = pool.acquire(100 * KB);
+        byte[] large = pool.acquire(2000 * KB);
+        pool.release(large);
+        pool.release(small);
+
+        assertSame(small, pool.acquire(90 * KB));
+        assertSame(large, pool.acquire(90 * KB));
+    }
+
+    @Test
+    public void keepsNoMoreThanTheCap() {
+        BufferPool pool = new BufferPool(1024 * KB);
+        byte[] first = pool.acquire(1000 * KB);
+        byte[] second = pool.acquire(1000 * KB);
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(first.length, pool.getPooledBytes());
+        assertSame(first, pool.acquire(1000 * KB));
+        assertNotSame(second, pool.acquire(1000 * KB));
+    }
+}
@@ -0,0 +1,123 @@
+package ca.skilarchhills.android.cameratiming;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifDirectoryBase;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.jfif.JfifDirectory;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * JVM tests that the EXIF segment parses with a standard reader
+ */
+public class ExifWriterTest {
+    // 2018-06-09 14:03:21.123456789 UTC
+    private static final long TIME_NANOS = 1528553001123456789L;
+
+    // Exif 2.31 tag this version of metadata-extractor has no name for
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+
+    private static byte[] encode(int width, int height) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", output);
+        return output.toByteArray();
+    }
+
+    private static ExifWriter writer() {
+        ExifWriter exif = new ExifWriter("Maker", "Model 1", TimeZone.getTimeZone("GMT-04:00"));
+        exif.setOrientation(6);
+        exif.setTime(TIME_NANOS);
+        exif.setImageNumber(42);
+        exif.setExposure(2000000, 400, 4.25f);
+        return exif;
+    }
+
+    @Test
+    public void segmentParses() throws Exception {
+        byte[] jpeg = encode(64, 48);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        int size = writer().write(output, jpeg, jpeg.length, crc);
+        byte[] written = output.toByteArray();
+        assertEquals(written.length, size);
+
+        CRC32 expected = new CRC32();
+        expected.update(written);
+        assertEquals(expected.getValue(), crc.getValue());
+
+        Metadata metadata = ImageMetadataReader.readMetadata(new ByteArrayInputStream(written));
+        ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        assertNotNull(ifd0);
+        assertEquals("Maker", ifd0.getString(ExifDirectoryBase.TAG_MAKE));
+        assertEquals("Model 1", ifd0.getString(ExifDirectoryBase.TAG_MODEL));
+        assertEquals(6, ifd0.getInt(ExifDirectoryBase.TAG_ORIENTATION));
+        assertEquals("2018:06:09 10:03:21", ifd0.getString(ExifDirectoryBase.TAG_DATETIME));
+
+        ExifSubIFDDirectory exif = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        assertNotNull(exif);
+        assertEquals("2018:06:09 10:03:21", exif.getString(ExifDirectoryBase.TAG_DATETIME_ORIGINAL));
+        assertEquals("123456789", exif.getString(ExifDirectoryBase.TAG_SUBSECOND_TIME_ORIGINAL));
+        assertEquals("-04:00", exif.getString(TAG_OFFSET_TIME_ORIGINAL));
+        assertEquals(TIME_NANOS / 1000000,
+                exif.getDateOriginal(TimeZone.getTimeZone("GMT-04:00")).getTime());
+        assertEquals(42, exif.getInt(ExifDirectoryBase.TAG_IMAGE_NUMBER));
+        assertEquals(0.002, exif.getRational(ExifDirectoryBase.TAG_EXPOSURE_TIME).doubleValue(), 1e-9);
+        assertEquals(400, exif.getInt(ExifDirectoryBase.TAG_ISO_EQUIVALENT));
+        assertEquals(4.25, exif.getRational(ExifDirectoryBase.TAG_FOCAL_LENGTH).doubleValue(), 1e-9);
+
+        // The encoder's JFIF segment made way for the EXIF one, and the picture is intact
+        assertNull(metadata.getFirstDirectoryOfType(JfifDirectory.class));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(written));
+        assertEquals(64, image.getWidth());
+        assertEquals(48, image.getHeight());
+
+        assertEquals(6, ExifWriter.readOrientation(written, written.length));
+        assertEquals(0, ExifWriter.readOrientation(jpeg, jpeg.length));
+    }
+
+    @Test
+    public void rewritingReplacesTheSegment() throws Exception {
+        byte[] jpeg = encode(16, 16);
+        ExifWriter exif = writer();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        exif.write(first, jpeg, jpeg.length, null);
+
+        exif.clear();
+        exif.setImageNumber(7);
+        byte[] once = first.toByteArray();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        exif.write(second, once, once.length, null);
+
+        Metadata metadata = ImageMetadataReader.readMetadata(
+                new ByteArrayInputStream(second.toByteArray()));
+        assertEquals(1, metadata.getDirectoriesOfType(ExifSubIFDDirectory.class).size());
+        ExifSubIFDDirectory directory = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        assertEquals(7, directory.getInt(ExifDirectoryBase.TAG_IMAGE_NUMBER));
+        assertNull(directory.getString(ExifDirectoryBase.TAG_DATETIME_ORIGINAL));
+        assertNull(metadata.getFirstDirectoryOfType(ExifIFD0Directory.class)
+                .getString(ExifDirectoryBase.TAG_ORIENTATION));
+    }
+
+    @Test
+    public void otherDataPassesThrough() throws Exception {
+        byte[] data = {1, 2, 3, 4, 5};
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(3, writer().write(output, data, 3, null));
+        assertArrayEquals(new byte[] {1, 2, 3}, output.toByteArray());
+    }
+}
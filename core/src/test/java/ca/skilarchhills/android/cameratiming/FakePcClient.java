@@ -0,0 +1,377 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * Plays the timing PC against a real {@link ImageServer}, written against the wire format
+ * rather than the phone's classes so the two sides check each other.  Picture bytes are
+ * read and dropped, only the frame headers are kept.
+ */
+class FakePcClient implements AutoCloseable {
+    // Replies
+    static final int NO_DATA = 1;
+    static final int NOT_IMPLEMENTED = 2;
+    static final int NANOS_ENABLED = 3;
+    static final int WINDOW_SET = 4;
+    static final int SUBSCRIBED = 5;
+    static final int THUMBNAILS_ENABLED = 6;
+    static final int INVALID_ARGUMENT = 7;
+
+    // Commands that the phone can send
+    static final int PHONE_IMAGE = 1001;
+    static final int PHONE_BULK_START = 1003;
+    static final int PHONE_BULK_END = 1004;
+    static final int PHONE_THUMBNAIL = 1005;
+    static final int PHONE_STATS = 1006;
+    static final int PHONE_TRIGGERS = 1007;
+    static final int PHONE_CACHE_STATS = 1008;
+
+    // Commands that the PC can send
+    static final int PC_ACK = 2001;
+    static final int PC_REQUEST_NEXT = 2002;
+    static final int PC_REQUEST_SPECIFIC = 2003;
+    static final int PC_REQUEST_ALL = 2004;
+    static final int PC_REQUEST_NANOS = 2005;
+    static final int PC_SET_WINDOW = 2006;
+    static final int PC_ACK_UP_TO = 2007;
+    static final int PC_SUBSCRIBE = 2008;
+    static final int PC_UNSUBSCRIBE = 2009;
+    static final int PC_REQUEST_RANGE = 2010;
+    static final int PC_REQUEST_TIME_RANGE = 2011;
+    static final int PC_REQUEST_THUMBNAILS = 2012;
+    static final int PC_REQUEST_FULL = 2013;
+    static final int PC_REQUEST_STATS = 2014;
+    static final int PC_REQUEST_TRIGGERS = 2015;
+    static final int PC_REQUEST_CACHE_STATS = 2016;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final byte[] drain = new byte[64 * 1024];
+
+    // Header of the last picture received
+    private long lastCommand;
+    private long lastIndex = -1;
+    private long lastTimestamp;
+    private long lastLength;
+
+    private long bytesReceived;
+
+    FakePcClient(SocketAddress address) throws IOException {
+        this(address, null);
+    }
+
+    /**
+     * @param local Address to connect from, the server keeps delivery progress per address.
+     *              Null for any.
+     */
+    FakePcClient(SocketAddress address, InetAddress local) throws IOException {
+        socket = new Socket();
+        if (local != null)
+            socket.bind(new InetSocketAddress(local, 0));
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30000);
+        socket.connect(address);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    FakePcClient(String host, int port) throws IOException {
+        this(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Sends a command with its arguments, returns the first long of the reply
+     */
+    private long command(long... words) throws IOException {
+        for (long word : words)
+            out.writeLong(word);
+        out.flush();
+        return in.readLong();
+    }
+
+    private void send(long... words) throws IOException {
+        for (long word : words)
+            out.writeLong(word);
+        out.flush();
+    }
+
+    /**
+     * Reads the rest of an image frame whose command has been read, dropping the bytes
+     */
+    private void readImage(long command) throws IOException {
+        if (command != PHONE_IMAGE && command != PHONE_THUMBNAIL)
+            throw new IOException("Expected an image, got " + command);
+        lastCommand = command;
+        lastIndex = in.readLong();
+        lastTimestamp = in.readLong();
+        lastLength = in.readLong();
+        long remaining = lastLength;
+        while (remaining > 0) {
+            int read = in.read(drain, 0, (int) Math.min(drain.length, remaining));
+            if (read < 0)
+                throw new IOException("Connection closed part way through image " + lastIndex);
+            remaining -= read;
+        }
+        bytesReceived += lastLength;
+    }
+
+    private void expectReply(long reply, long expected) throws IOException {
+        if (reply != expected)
+            throw new IOException("Expected reply " + expected + ", got " + reply);
+        send(PC_ACK);
+    }
+
+    void requestNanos() throws IOException {
+        expectReply(command(PC_REQUEST_NANOS), NANOS_ENABLED);
+    }
+
+    void requestThumbnails() throws IOException {
+        expectReply(command(PC_REQUEST_THUMBNAILS), THUMBNAILS_ENABLED);
+    }
+
+    void setWindow(long size) throws IOException {
+        expectReply(command(PC_SET_WINDOW, size), WINDOW_SET);
+    }
+
+    /**
+     * One stop-and-wait PC_REQUEST_NEXT, or PC_REQUEST_SPECIFIC if index isn't negative
+     * @return Whether an image came back, false on NO_DATA
+     */
+    boolean request(long index) throws IOException {
+        long reply = index < 0 ? command(PC_REQUEST_NEXT) : command(PC_REQUEST_SPECIFIC, index);
+        if (reply == NO_DATA) {
+            send(PC_ACK);
+            return false;
+        }
+        readImage(reply);
+        send(PC_ACK);
+        return true;
+    }
+
+    /**
+     * PC_REQUEST_FULL, the whole picture even after PC_REQUEST_THUMBNAILS
+     * @return Whether it came back, false on NO_DATA
+     */
+    boolean requestFull(long index) throws IOException {
+        long reply = command(PC_REQUEST_FULL, index);
+        if (reply == NO_DATA) {
+            send(PC_ACK);
+            return false;
+        }
+        readImage(reply);
+        send(PC_ACK);
+        return true;
+    }
+
+    boolean requestNext() throws IOException {
+        return request(-1);
+    }
+
+    /**
+     * PC_REQUEST_NEXT with a window set, acknowledging every image with PC_ACK_UP_TO
+     * @param count Images the phone is known to have waiting
+     * @return Images received, 0 on NO_DATA
+     */
+    int receiveWindow(int count) throws IOException {
+        long reply = command(PC_REQUEST_NEXT);
+        if (reply == NO_DATA) {
+            send(PC_ACK);
+            return 0;
+        }
+        for (int received = 0; ; ) {
+            readImage(reply);
+            send(PC_ACK_UP_TO, lastIndex);
+            if (++received == count)
+                return received;
+            reply = in.readLong();
+        }
+    }
+
+    /**
+     * PC_SUBSCRIBE, pictures then arrive through {@link #receivePushed}
+     */
+    void subscribe() throws IOException {
+        expectReply(command(PC_SUBSCRIBE), SUBSCRIBED);
+    }
+
+    /**
+     * Reads the next picture pushed to a subscriber
+     * @param ack Whether to acknowledge it with PC_ACK_UP_TO
+     */
+    void receivePushed(boolean ack) throws IOException {
+        readImage(in.readLong());
+        if (ack)
+            send(PC_ACK_UP_TO, lastIndex);
+    }
+
+    void unsubscribe() throws IOException {
+        send(PC_UNSUBSCRIBE);
+    }
+
+    /**
+     * PC_REQUEST_RANGE, or PC_REQUEST_ALL if from is negative, acknowledged as a whole
+     * @return Images received, 0 on NO_DATA
+     */
+    int requestBulk(long from, long to) throws IOException {
+        return receiveBulk(from < 0 ? command(PC_REQUEST_ALL) : command(PC_REQUEST_RANGE, from, to));
+    }
+
+    int requestAll() throws IOException {
+        return requestBulk(-1, -1);
+    }
+
+    /**
+     * PC_REQUEST_TIME_RANGE, both ends inclusive and in the unit timestamps are sent in
+     * @return Images received, 0 on NO_DATA
+     */
+    int requestTimeRange(long start, long end) throws IOException {
+        return receiveBulk(command(PC_REQUEST_TIME_RANGE, start, end));
+    }
+
+    /**
+     * Reads a bulk transfer whose first reply has been read and acknowledges it as a whole
+     * @return Images received, 0 on NO_DATA
+     */
+    private int receiveBulk(long reply) throws IOException {
+        if (reply == NO_DATA) {
+            send(PC_ACK);
+            return 0;
+        }
+        if (reply != PHONE_BULK_START)
+            throw new IOException("Expected a bulk transfer, got " + reply);
+        in.readLong();
+        in.readLong();
+        long count = in.readLong();
+        for (long i = 0; i < count; i++)
+            readImage(in.readLong());
+        long end = in.readLong();
+        if (end != PHONE_BULK_END)
+            throw new IOException("Expected the end of the bulk transfer, got " + end);
+        send(PC_ACK);
+        return (int) count;
+    }
+
+    /**
+     * PC_REQUEST_STATS
+     * @return Per histogram count, 50th and 99th percentiles and maximum, one row each
+     */
+    long[][] requestStats() throws IOException {
+        long reply = command(PC_REQUEST_STATS);
+        if (reply != PHONE_STATS)
+            throw new IOException("Expected stats, got " + reply);
+        long[][] stats = new long[(int) in.readLong()][4];
+        for (long[] row : stats)
+            for (int i = 0; i < row.length; i++)
+                row[i] = in.readLong();
+        send(PC_ACK);
+        return stats;
+    }
+
+    /**
+     * PC_REQUEST_TRIGGERS
+     * @return Per trigger its time and the time of the trigger that started its capture,
+     *         empty on NO_DATA
+     */
+    long[][] requestTriggers(long from) throws IOException {
+        long reply = command(PC_REQUEST_TRIGGERS, from);
+        if (reply == NO_DATA) {
+            send(PC_ACK);
+            return new long[0][];
+        }
+        if (reply != PHONE_TRIGGERS)
+            throw new IOException("Expected triggers, got " + reply);
+        in.readLong();
+        long[][] triggers = new long[(int) in.readLong()][2];
+        for (long[] trigger : triggers) {
+            trigger[0] = in.readLong();
+            trigger[1] = in.readLong();
+        }
+        send(PC_ACK);
+        return triggers;
+    }
+
+    /**
+     * PC_REQUEST_CACHE_STATS
+     * @return Hits, misses, evicted bytes and cached bytes
+     */
+    long[] requestCacheStats() throws IOException {
+        long reply = command(PC_REQUEST_CACHE_STATS);
+        if (reply != PHONE_CACHE_STATS)
+            throw new IOException("Expected cache stats, got " + reply);
+        long[] stats = new long[4];
+        for (int i = 0; i < stats.length; i++)
+            stats[i] = in.readLong();
+        send(PC_ACK);
+        return stats;
+    }
+
+    /**
+     * Sends a raw command and returns the phone's reply without acknowledging it
+     */
+    long sendRaw(long... words) throws IOException {
+        return command(words);
+    }
+
+    /**
+     * Sends the start of a command and then shuts the connection's sending side, as a PC
+     * that drops part way through would
+     * @return Whether the phone closed the connection without replying
+     */
+    boolean sendTruncated(long... words) throws IOException {
+        send(words);
+        socket.shutdownOutput();
+        return in.read() < 0;
+    }
+
+    /**
+     * Waits for the phone to close the connection
+     * @return false if it sent something instead
+     */
+    boolean awaitClosed() throws IOException {
+        try {
+            return in.read() < 0;
+        } catch (SocketException e) {
+            // Reset, the phone closed before reading everything we sent
+            return true;
+        }
+    }
+
+    void ack() throws IOException {
+        send(PC_ACK);
+    }
+
+    long getLastCommand() {
+        return lastCommand;
+    }
+
+    long getLastIndex() {
+        return lastIndex;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getLastLength() {
+        return lastLength;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
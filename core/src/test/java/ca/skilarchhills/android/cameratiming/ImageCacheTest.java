@@ -0,0 +1,164 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for the cache of recently saved pictures
+ */
+public class ImageCacheTest {
+    // Not a multiple of the cache's buffer granule, so picture bytes and buffer sizes differ
+    private static final int SIZE = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(7);
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Records data as the picture at an index and commits it
+     */
+    private static void put(ImageCache cache, int index, byte[] data) throws IOException {
+        ImageCache.Output output = cache.record(new ByteArrayOutputStream(), data.length);
+        output.write(data);
+        output.commit(index, false);
+    }
+
+    private static byte[] bytes(ImageCache.Entry entry) {
+        ByteBuffer data = entry.getData();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedCountingPictureBytes() throws Exception {
+        ImageCache cache = new ImageCache(4 * SIZE);
+        byte[][] pictures = new byte[5][];
+        for (int i = 0; i < pictures.length; i++)
+            pictures[i] = randomBytes(SIZE);
+        for (int i = 0; i < 4; i++)
+            put(cache, i, pictures[i]);
+        assertEquals(4 * SIZE, cache.getCachedBytes());
+
+        // Reading 0 keeps it over 1
+        cache.release(cache.acquire(0, false));
+        put(cache, 4, pictures[4]);
+        assertNull(cache.acquire(1, false));
+        assertNull(cache.acquire(0, true));
+        ImageCache.Entry entry = cache.acquire(0, false);
+        assertArrayEquals(pictures[0], bytes(entry));
+        cache.release(entry);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(SIZE, cache.getEvictedBytes());
+        assertEquals(4 * SIZE, cache.getCachedBytes());
+    }
+
+    @Test
+    public void pictureBeingSentIsNotOverwritten() throws Exception {
+        ImageCache cache = new ImageCache(2 * SIZE);
+        byte[] first = randomBytes(SIZE);
+        put(cache, 0, first);
+        put(cache, 1, randomBytes(SIZE));
+        ImageCache.Entry held = cache.acquire(0, false);
+
+        // Evicts everything, reusing whatever buffers are free
+        for (int i = 2; i < 8; i++)
+            put(cache, i, randomBytes(SIZE));
+        assertNull(cache.acquire(0, false));
+        assertArrayEquals(first, bytes(held));
+        cache.release(held);
+    }
+
+    @Test
+    public void failedWriteLeavesNothingCached() throws Exception {
+        ImageCache cache = new ImageCache(4 * SIZE);
+        final int room = SIZE / 2;
+        OutputStream full = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > room)
+                    throw new IOException("No space left on device");
+            }
+        };
+
+        ImageCache.Output output = cache.record(full, SIZE);
+        byte[] picture = randomBytes(SIZE);
+        try {
+            for (byte b : picture)
+                output.write(b);
+            fail("Wrote past the end of the disk");
+        } catch (IOException e) {
+            // The writer gives up on the picture
+            output.discard();
+        }
+        assertNull(cache.acquire(0, false));
+        assertEquals(0, cache.getCachedBytes());
+
+        // A late commit after the discard doesn't bring it back
+        output.commit(0, false);
+        assertNull(cache.acquire(0, false));
+    }
+
+    @Test
+    public void overrunIsSavedButNotCached() throws Exception {
+        ImageCache cache = new ImageCache(4 * SIZE);
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        ImageCache.Output output = cache.record(saved, SIZE);
+        byte[] picture = randomBytes(2 * SIZE);
+        output.write(picture, 0, SIZE);
+        output.write(picture[SIZE]);
+        output.write(picture, SIZE + 1, SIZE - 1);
+        output.commit(0, false);
+
+        assertArrayEquals(picture, saved.toByteArray());
+        assertNull(cache.acquire(0, false));
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void senderUsesTheCache() throws Exception {
+        try (LoopbackServer server = new LoopbackServer(folder.newFolder(), 2, 100 * 1024)) {
+            // Differs from the file on disk, so it shows where the picture came from
+            put(server.getCatalog().getCache(), 1, randomBytes(SIZE));
+
+            try (FakePcClient client = new FakePcClient(server.getAddress())) {
+                assertTrue(client.request(1));
+                assertEquals(SIZE, client.getLastLength());
+                assertTrue(client.request(0));
+                assertEquals(100 * 1024, client.getLastLength());
+
+                long[] stats = client.requestCacheStats();
+                assertNotNull(stats);
+                assertEquals(1, stats[0]);
+                assertEquals(1, stats[1]);
+                assertEquals(0, stats[2]);
+                assertEquals(SIZE, stats[3]);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Hammers the catalog and client cursors from several threads at once
+ */
+public class ImageCatalogStressTest {
+    private static final int IMAGES = 20000;
+    private static final int READERS = 4;
+    private static final long BASE_NANOS = 1514764800000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readersSeeEveryAppendComplete() throws Exception {
+        final ImageCatalog catalog = ImageCatalog.get(folder.newFolder());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; i < IMAGES; i++)
+                        catalog.append(BASE_NANOS + i * 1000L, i, i);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }));
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        int seen = 0;
+                        while (seen < IMAGES) {
+                            catalog.awaitIndex(seen, 10);
+                            int size = catalog.size();
+                            // Everything published must be fully written
+                            for (; seen < size; seen++) {
+                                long expected = BASE_NANOS + seen * 1000L;
+                                assertEquals(expected, catalog.getTimestamp(seen));
+                                assertEquals(ImageName.format(expected), catalog.getFile(seen).getName());
+                            }
+                            assertNull(catalog.getFile(IMAGES));
+                        }
+                        assertEquals(IMAGES / 2, catalog.find(BASE_NANOS + IMAGES / 2 * 1000L));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        runAll(threads, start);
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(IMAGES, catalog.size());
+    }
+
+    @Test
+    public void reopenedCatalogKeepsIndicesAndDelivery() throws Exception {
+        File dir = folder.newFolder();
+        ImageCatalog catalog = ImageCatalog.get(dir);
+        for (int i = 0; i < 3000; i++)
+            catalog.append(BASE_NANOS + i, 100, 0);
+        catalog.markDelivered(0, 2500);
+
+        // Same process, so open a second catalog over a copy of the file
+        File copy = folder.newFolder();
+        Files.copy(new File(dir, "catalog.dat").toPath(),
+                new File(copy, "catalog.dat").toPath());
+        ImageCatalog reopened = ImageCatalog.get(copy);
+
+        assertEquals(3000, reopened.size());
+        assertEquals(2500, reopened.firstUndelivered());
+        assertEquals(BASE_NANOS + 2999, reopened.getTimestamp(2999));
+        assertEquals(1234, reopened.find(BASE_NANOS + 1234));
+        assertEquals(-1, reopened.find(BASE_NANOS - 1));
+        assertArrayEquals(new int[] {10, 11, 12}, reopened.findRange(BASE_NANOS + 10, BASE_NANOS + 12));
+        assertEquals(0, reopened.findRange(BASE_NANOS + 5000, Long.MAX_VALUE).length);
+    }
+
+    @Test
+    public void unreadableCatalogFailsInsteadOfLookingEmpty() throws Exception {
+        File dir = folder.newFolder();
+        Files.write(new File(dir, "catalog.dat").toPath(), new byte[64]);
+        ImageCatalog catalog = ImageCatalog.get(dir);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                catalog.size();
+                fail("Read an unrecognised catalog");
+            } catch (IOException e) {
+                // Expected, and again on the next call
+            }
+        }
+    }
+
+    @Test
+    public void importedPicturesCountAsDelivered() throws Exception {
+        File dir = folder.newFolder();
+        for (int i = 0; i < 3; i++)
+            Files.write(new File(dir, (BASE_NANOS / 1000000 + i) + ".jpg").toPath(), new byte[100]);
+        ImageCatalog catalog = ImageCatalog.get(dir);
+        assertEquals(3, catalog.size());
+        assertEquals(3, catalog.firstUndelivered());
+
+        // Only pictures taken since the upgrade are waiting for the PCs
+        assertEquals(3, catalog.append(BASE_NANOS + 3000000, 100, 0));
+        assertEquals(3, catalog.firstUndelivered());
+        catalog.close();
+    }
+
+    @Test
+    public void partWrittenPicturesAreRemovedOnOpen() throws Exception {
+        File dir = folder.newFolder();
+        File thumbs = new File(dir, ImageName.THUMBNAIL_DIR);
+        assertTrue(thumbs.mkdir());
+        String name = ImageName.format(BASE_NANOS) + ImageName.TEMP_SUFFIX;
+        Files.write(new File(dir, name).toPath(), new byte[100]);
+        Files.write(new File(thumbs, name).toPath(), new byte[10]);
+        Files.write(new File(dir, "notes.tmp").toPath(), new byte[10]);
+
+        // Left by a crash mid write, so neither imported nor kept
+        ImageCatalog catalog = ImageCatalog.get(dir);
+        assertEquals(0, catalog.size());
+        assertFalse(new File(dir, name).exists());
+        assertFalse(new File(thumbs, name).exists());
+        assertTrue(new File(dir, "notes.tmp").exists());
+        catalog.close();
+    }
+
+    @Test
+    public void batchIsPublishedTogether() throws Exception {
+        final ImageCatalog catalog = ImageCatalog.get(folder.newFolder());
+        catalog.setSync(true);
+        catalog.append(BASE_NANOS, 100, 0);
+
+        catalog.beginBatch();
+        for (int i = 1; i <= 3; i++)
+            assertEquals(i, catalog.append(BASE_NANOS + i, 100, 0));
+        assertEquals(1, catalog.size());
+        assertEquals(4, catalog.nextIndex());
+        assertNull(catalog.getFile(3));
+
+        // A reader waiting for the batch wakes once it's committed
+        final AtomicReference<Integer> seen = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    catalog.awaitIndex(3, 10000);
+                    seen.set(catalog.size());
+                } catch (InterruptedException | IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        reader.start();
+        catalog.commitBatch();
+        reader.join();
+        assertEquals(Integer.valueOf(4), seen.get());
+        assertEquals(BASE_NANOS + 3, catalog.getTimestamp(3));
+    }
+
+    @Test
+    public void everyIndexIsTakenExactlyOnce() throws Exception {
+        final ClientConnection.ClientState state = new ClientConnection.ClientState(0);
+        final AtomicIntegerArray taken = new AtomicIntegerArray(IMAGES);
+        final AtomicInteger published = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (published.get() < IMAGES)
+                    published.incrementAndGet();
+            }
+        }));
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (state.getNext() < IMAGES) {
+                        int index = state.takeNext(published.get());
+                        if (index >= 0)
+                            taken.incrementAndGet(index);
+                        state.setBulkAcked(index);
+                    }
+                }
+            }));
+        }
+
+        runAll(threads, start);
+        for (int i = 0; i < IMAGES; i++)
+            assertEquals("index " + i, 1, taken.get(i));
+        assertEquals(IMAGES, state.getBulkResume());
+    }
+
+    private static void runAll(List<Thread> threads, CountDownLatch start) throws InterruptedException {
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(30000);
+    }
+}
@@ -0,0 +1,64 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the lock free latency histogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long micros = 0; micros < 1000000; micros += 7) {
+            int index = LatencyHistogram.indexOf(micros);
+            assertTrue(micros + " above its bucket", micros <= LatencyHistogram.upperEdge(index));
+            if (index > 0)
+                assertTrue(micros + " below its bucket", micros > LatencyHistogram.upperEdge(index - 1));
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int millis = 1; millis <= 1000; millis++)
+            histogram.record(millis * 1000000L);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500000, histogram.getPercentileMicros(0.5), 500000 / 16);
+        assertEquals(990000, histogram.getPercentileMicros(0.99), 990000 / 16);
+        assertEquals(1000000, histogram.getPercentileMicros(1));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+
+        assertEquals(0, histogram.getPercentileMicros(0.99));
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        histogram.record((i + offset) * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999 + 3, histogram.getMaxMicros());
+    }
+}
@@ -0,0 +1,110 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+
+/**
+ * An {@link ImageServer} on a loopback port, serving a catalog of random pictures
+ */
+class LoopbackServer implements AutoCloseable {
+    static final long BASE_NANOS = 1514764800000000000L;
+
+    // Pictures are 1/30 s apart, like a burst
+    static final long FRAME_NANOS = 33333333L;
+
+    private final File dir;
+    private final ImageCatalog catalog;
+    private final ImageServer server;
+    private final ServerSocketChannel channel;
+    private final Thread acceptThread;
+
+    /**
+     * @param dir   Empty directory for the pictures and catalog
+     * @param count Pictures to put in the catalog
+     * @param size  Bytes per picture
+     */
+    LoopbackServer(File dir, int count, int size) throws IOException {
+        this(dir, count, size, 4);
+    }
+
+    /**
+     * @param maxClients PCs served at once
+     */
+    LoopbackServer(File dir, int count, int size, int maxClients) throws IOException {
+        this.dir = dir;
+        catalog = ImageCatalog.get(dir);
+        for (int i = 0; i < count; i++)
+            addPicture(size);
+
+        server = new ImageServer(catalog, maxClients);
+        channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve(channel);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoopbackServer");
+        acceptThread.start();
+    }
+
+    /**
+     * Writes another random picture and adds it to the catalog
+     * @return Its index
+     */
+    int addPicture(int size) throws IOException {
+        long timestamp = BASE_NANOS + catalog.size() * FRAME_NANOS;
+        byte[] data = new byte[size];
+        new Random(timestamp).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(
+                new File(dir, ImageName.format(timestamp)));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return catalog.append(timestamp, size, 0);
+    }
+
+    ImageCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Pictures the connected PC furthest behind has yet to get to
+     */
+    int backlog() throws IOException {
+        return server.backlog();
+    }
+
+    SocketAddress getAddress() {
+        return channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Stops the server, waits for its accept thread and closes the catalog
+     */
+    @Override
+    public void close() {
+        server.close();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            catalog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
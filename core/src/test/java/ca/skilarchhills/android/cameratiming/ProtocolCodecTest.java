@@ -0,0 +1,67 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for the PC protocol framing
+ */
+public class ProtocolCodecTest {
+
+    @Test
+    public void writesLongsBigEndian() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolCodec codec = new ProtocolCodec(new ByteArrayInputStream(new byte[0]), out);
+
+        codec.writeLong(0x0102030405060708L);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, out.toByteArray());
+    }
+
+    @Test
+    public void headerRoundTrips() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocolCodec writer = new ProtocolCodec(new ByteArrayInputStream(new byte[0]), out);
+        writer.writeHeader(1001, 42, 1514764800123456789L, 3 * 1024 * 1024);
+        writer.writeLong(-1);
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(5 * 8, bytes.length);
+
+        ProtocolCodec reader = new ProtocolCodec(new ByteArrayInputStream(bytes), out);
+        assertEquals(1001, reader.readLong());
+        assertEquals(42, reader.readLong());
+        assertEquals(1514764800123456789L, reader.readLong());
+        assertEquals(3 * 1024 * 1024, reader.readLong());
+        assertEquals(-1, reader.readLong());
+    }
+
+    @Test
+    public void readsLongSplitAcrossPackets() throws Exception {
+        // Hands out at most 3 bytes per read, like a slow socket
+        InputStream trickle = new ByteArrayInputStream(new byte[] {0, 0, 0, 0, 0, 0, 0x07, (byte) 0xD2}) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        ProtocolCodec codec = new ProtocolCodec(trickle, new ByteArrayOutputStream());
+
+        assertEquals(2002, codec.readLong());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedLongThrows() throws Exception {
+        ProtocolCodec codec = new ProtocolCodec(
+                new ByteArrayInputStream(new byte[] {0, 0, 0, 0}), new ByteArrayOutputStream());
+
+        codec.readLong();
+    }
+}
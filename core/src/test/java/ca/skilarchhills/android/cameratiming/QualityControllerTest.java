@@ -0,0 +1,69 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for the adaptive quality controller
+ */
+public class QualityControllerTest {
+
+    @Test
+    public void keepsFullQualityUntilSomethingIsSent() {
+        QualityController controller = new QualityController();
+        controller.onEncoded(50000000, 2000000);
+
+        controller.update(100);
+
+        assertEquals(QualityController.MAX_QUALITY, controller.getQuality());
+        assertEquals(1, controller.getScale(), 0);
+    }
+
+    @Test
+    public void lowersQualityThenScaleWhileBehind() {
+        QualityController controller = new QualityController();
+        // 1 MB pictures over a 1 MB/s link, ten waiting is about ten seconds behind
+        controller.onEncoded(50000000, 1000000);
+        controller.onSent(1000000, 1000000000);
+
+        for (int i = 0; i < 100; i++)
+            controller.update(10);
+
+        assertEquals(QualityController.MIN_QUALITY, controller.getQuality());
+        assertEquals(QualityController.MIN_SCALE, controller.getScale(), 0);
+    }
+
+    @Test
+    public void restoresScaleThenQualityOnceDrained() {
+        QualityController controller = new QualityController();
+        controller.onEncoded(50000000, 400000);
+        controller.onSent(1000000, 1000000000);
+        for (int i = 0; i < 100; i++)
+            controller.update(10);
+
+        // Empty backlog, one picture is under half a second away
+        controller.update(0);
+        assertEquals(QualityController.MIN_QUALITY, controller.getQuality());
+        assertEquals(QualityController.MIN_SCALE + 0.125f, controller.getScale(), 0);
+
+        for (int i = 0; i < 100; i++)
+            controller.update(0);
+        assertEquals(QualityController.MAX_QUALITY, controller.getQuality());
+        assertEquals(1, controller.getScale(), 0);
+    }
+
+    @Test
+    public void holdsSteadyBetweenHalfAndFullTarget() {
+        QualityController controller = new QualityController();
+        // Each picture takes 1.5 s to send, under the 2 s target but not by half
+        controller.onEncoded(0, 1500000);
+        controller.onSent(1000000, 1000000000);
+        controller.update(5);
+        int quality = controller.getQuality();
+
+        controller.update(0);
+
+        assertEquals(quality, controller.getQuality());
+    }
+}
@@ -0,0 +1,198 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for pictures kept in the segment store
+ */
+public class SegmentStoreTest {
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int SIZE = 300 * 1024;
+    private static final int THUMBNAIL_SIZE = 10 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private File dir;
+    private ImageCatalog catalog;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+        catalog = ImageCatalog.get(dir);
+        catalog.getStore().setSegmentSize(SEGMENT_SIZE);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Stores a picture followed by a thumbnail and adds it to the catalog
+     * @return Its index
+     */
+    private int store(byte[] picture, byte[] thumbnail) throws IOException {
+        SegmentStore.Output output = catalog.getStore().append(picture.length + thumbnail.length);
+        output.write(picture);
+        output.write(thumbnail);
+        output.commit();
+        long timestamp = LoopbackServer.BASE_NANOS +
+                catalog.nextIndex() * LoopbackServer.FRAME_NANOS;
+        return catalog.appendStored(timestamp, output.getLocation(), picture.length,
+                thumbnail.length, 0);
+    }
+
+    /**
+     * A stored picture's bytes, read back out of its segment
+     */
+    private byte[] stored(int index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        catalog.getStore().transfer(catalog.getLocation(index), catalog.getSize(index),
+                Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void picturesRollOverAndSurviveReopen() throws Exception {
+        byte[][] pictures = new byte[6][];
+        for (int i = 0; i < 5; i++) {
+            pictures[i] = randomBytes(SIZE);
+            assertEquals(i, store(pictures[i], randomBytes(THUMBNAIL_SIZE)));
+        }
+
+        // Three fit in the first segment
+        assertEquals(0, SegmentStore.segmentOf(catalog.getLocation(2)));
+        assertEquals(1, SegmentStore.segmentOf(catalog.getLocation(3)));
+        assertEquals(SIZE + THUMBNAIL_SIZE, SegmentStore.positionOf(catalog.getLocation(4)));
+        assertEquals(THUMBNAIL_SIZE, catalog.getThumbnailSize(4));
+
+        assertArrayEquals(pictures[3], stored(3));
+
+        // Carries on after the last stored picture once reloaded from disk
+        catalog.close();
+        catalog = ImageCatalog.get(dir);
+        assertTrue(catalog.isStored(4));
+        pictures[5] = randomBytes(SIZE);
+        assertEquals(5, store(pictures[5], randomBytes(THUMBNAIL_SIZE)));
+        assertEquals(SegmentStore.location(1, 2 * (SIZE + THUMBNAIL_SIZE)), catalog.getLocation(5));
+        assertArrayEquals(pictures[4], stored(4));
+        assertArrayEquals(pictures[5], stored(5));
+        assertFalse(new File(dir, ImageName.format(catalog.getTimestamp(0))).exists());
+    }
+
+    @Test
+    public void nextSegmentIsAllocatedAheadOfTheWriter() throws Exception {
+        store(randomBytes(SIZE), new byte[0]);
+
+        // Closing waits for the allocation
+        catalog.close();
+        File segments = new File(dir, SegmentStore.DIR_NAME);
+        assertEquals(SEGMENT_SIZE, new File(segments, "00001.seg").length());
+        assertFalse(new File(segments, "00002.seg").exists());
+    }
+
+    @Test
+    public void abortedPartialWriteIsOverwritten() throws Exception {
+        store(randomBytes(SIZE), new byte[0]);
+
+        // A picture whose encode or write failed half way
+        SegmentStore.Output failed = catalog.getStore().append(SIZE);
+        failed.write(randomBytes(SIZE / 2));
+        failed.abort();
+
+        byte[] next = randomBytes(SIZE);
+        assertEquals(1, store(next, new byte[0]));
+        assertEquals(failed.getLocation(), catalog.getLocation(1));
+        assertArrayEquals(next, stored(1));
+    }
+
+    @Test
+    public void overrunFailsAndTakesNoSpace() throws Exception {
+        SegmentStore.Output output = catalog.getStore().append(SIZE);
+        output.write(randomBytes(SIZE - 1));
+        output.write(0);
+        try {
+            output.write(0);
+            fail("Wrote past the promised length");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(SIZE, output.size());
+        output.abort();
+
+        byte[] next = randomBytes(SIZE);
+        assertEquals(0, store(next, new byte[0]));
+        assertEquals(0, catalog.getLocation(0));
+        assertArrayEquals(next, stored(0));
+    }
+
+    @Test
+    public void groupAbortedAfterSyncFailureGivesItsSpaceBack() throws Exception {
+        byte[] kept = randomBytes(SIZE);
+        store(kept, new byte[0]);
+        catalog.getStore().sync();
+
+        // Written and committed, then the group's sync fails and every picture in it is
+        // discarded in order, the last one having rolled over to a new segment
+        SegmentStore store = catalog.getStore();
+        SegmentStore.Output[] group = new SegmentStore.Output[3];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = store.append(SIZE);
+            group[i].write(randomBytes(SIZE));
+            group[i].commit();
+        }
+        assertEquals(1, SegmentStore.segmentOf(group[2].getLocation()));
+        for (SegmentStore.Output output : group)
+            output.abort();
+        assertEquals(1, catalog.size());
+
+        // The next group lands where the failed one did, and syncs
+        byte[] next = randomBytes(SIZE);
+        assertEquals(1, store(next, new byte[0]));
+        assertEquals(group[0].getLocation(), catalog.getLocation(1));
+        store.sync();
+        assertArrayEquals(kept, stored(0));
+        assertArrayEquals(next, stored(1));
+    }
+
+    @Test
+    public void storedPicturesAreServed() throws Exception {
+        catalog.close();
+        try (LoopbackServer server = new LoopbackServer(dir, 2, SIZE)) {
+            catalog = server.getCatalog();
+            catalog.getStore().setSegmentSize(SEGMENT_SIZE);
+            store(randomBytes(SIZE), randomBytes(THUMBNAIL_SIZE));
+            try (FakePcClient client = new FakePcClient(server.getAddress())) {
+                assertTrue(client.request(2));
+                assertEquals(SIZE, client.getLastLength());
+
+                // Files and stored pictures side by side
+                client.requestThumbnails();
+                assertTrue(client.request(1));
+                assertEquals(FakePcClient.PHONE_IMAGE, client.getLastCommand());
+                assertTrue(client.request(2));
+                assertEquals(FakePcClient.PHONE_THUMBNAIL, client.getLastCommand());
+                assertEquals(THUMBNAIL_SIZE, client.getLastLength());
+                assertEquals(2L * SIZE + THUMBNAIL_SIZE, client.getBytesReceived());
+            }
+        }
+    }
+}
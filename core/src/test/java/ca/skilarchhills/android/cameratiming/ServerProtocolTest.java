@@ -0,0 +1,273 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the real server over loopback with {@link FakePcClient}
+ */
+public class ServerProtocolTest {
+    private static final int IMAGES = 10;
+    private static final int SIZE = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LoopbackServer server;
+    private FakePcClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer(folder.newFolder(), IMAGES, SIZE);
+        client = new FakePcClient(server.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void requestNextHandsOutEachImageOnce() throws Exception {
+        client.requestNanos();
+        for (int i = 0; i < IMAGES; i++) {
+            assertTrue(client.requestNext());
+            assertEquals(i, client.getLastIndex());
+            assertEquals(LoopbackServer.BASE_NANOS + i * LoopbackServer.FRAME_NANOS,
+                    client.getLastTimestamp());
+            assertEquals(SIZE, client.getLastLength());
+        }
+        assertFalse(client.requestNext());
+        assertEquals((long) IMAGES * SIZE, client.getBytesReceived());
+        assertEquals(IMAGES, server.getCatalog().firstUndelivered());
+    }
+
+    @Test
+    public void timestampsDefaultToMillis() throws Exception {
+        assertTrue(client.request(3));
+        assertEquals((LoopbackServer.BASE_NANOS + 3 * LoopbackServer.FRAME_NANOS) / 1000000,
+                client.getLastTimestamp());
+    }
+
+    @Test
+    public void indexOutsideIntRangeIsNoData() throws Exception {
+        // Must not wrap around to picture 0
+        assertFalse(client.request(1L << 32));
+        assertEquals(FakePcClient.NO_DATA, client.sendRaw(FakePcClient.PC_REQUEST_SPECIFIC, -5));
+        client.ack();
+        assertFalse(client.requestFull(Long.MIN_VALUE));
+        assertEquals(0, client.getBytesReceived());
+
+        // Nor may a command
+        assertEquals(FakePcClient.NOT_IMPLEMENTED,
+                client.sendRaw(FakePcClient.PC_REQUEST_NEXT + (1L << 32)));
+        client.ack();
+        assertTrue(client.sendTruncated(FakePcClient.PC_REQUEST_SPECIFIC));
+    }
+
+    @Test
+    public void thumbnailIsNotADelivery() throws Exception {
+        client.requestThumbnails();
+        assertTrue(client.requestNext());
+        client.setWindow(4);
+        assertEquals(2, client.requestBulk(1, 2));
+        assertEquals(0, server.getCatalog().firstUndelivered());
+
+        assertTrue(client.requestFull(0));
+        assertEquals(FakePcClient.PHONE_IMAGE, client.getLastCommand());
+        // A round trip, so the phone has taken in the ACK
+        client.requestStats();
+        assertEquals(1, server.getCatalog().firstUndelivered());
+    }
+
+    @Test
+    public void skippedPictureDoesNotHoldUpTheBacklog() throws Exception {
+        // Once the server has the connection, everything is waiting for it
+        client.requestStats();
+        assertEquals(IMAGES, server.backlog());
+        for (int i = 0; i < IMAGES; i++) {
+            if (i != 3)
+                assertTrue(client.request(i));
+        }
+        // A round trip, so the phone has taken in the last ACK
+        client.requestStats();
+        assertEquals(3, server.getCatalog().firstUndelivered());
+        assertEquals(0, server.backlog());
+
+        server.addPicture(SIZE);
+        assertEquals(1, server.backlog());
+    }
+
+    @Test
+    public void windowStreamsEverything() throws Exception {
+        client.setWindow(4);
+        assertEquals(IMAGES, client.receiveWindow(IMAGES));
+        assertEquals(IMAGES - 1, client.getLastIndex());
+        assertEquals(0, client.receiveWindow(IMAGES));
+        assertEquals(IMAGES, server.getCatalog().firstUndelivered());
+    }
+
+    @Test
+    public void badWindowIsRejected() throws Exception {
+        assertEquals(FakePcClient.INVALID_ARGUMENT, client.sendRaw(FakePcClient.PC_SET_WINDOW, 0));
+        client.ack();
+        assertEquals(FakePcClient.INVALID_ARGUMENT, client.sendRaw(FakePcClient.PC_SET_WINDOW, -4));
+        client.ack();
+
+        // Still stop-and-wait
+        assertTrue(client.requestNext());
+        assertTrue(client.requestNext());
+        assertEquals(1, client.getLastIndex());
+
+        // Too large is clamped rather than refused
+        client.setWindow(Integer.MAX_VALUE + 1L);
+        assertEquals(IMAGES - 2, client.receiveWindow(IMAGES - 2));
+    }
+
+    @Test
+    public void truncatedWindowClosesTheConnection() throws Exception {
+        assertTrue(client.sendTruncated(FakePcClient.PC_SET_WINDOW));
+    }
+
+    @Test
+    public void bulkResumesAfterReconnect() throws Exception {
+        assertEquals(4, client.requestBulk(0, 3));
+        // Carries on after the range
+        assertEquals(IMAGES - 4, client.requestAll());
+        // A round trip, so the phone has taken in the final ACK before the connection drops
+        client.requestStats();
+
+        // Same address, so the server remembers everything went out
+        client.close();
+        client = new FakePcClient(server.getAddress());
+        assertEquals(0, client.requestAll());
+
+        server.addPicture(SIZE);
+        assertEquals(1, client.requestAll());
+        assertEquals(IMAGES, client.getLastIndex());
+    }
+
+    @Test
+    public void subscriberIsPushedNewPicturesAndResumesAfterReconnect() throws Exception {
+        client.subscribe();
+        for (int i = 0; i < IMAGES; i++) {
+            client.receivePushed(true);
+            assertEquals(i, client.getLastIndex());
+        }
+        server.addPicture(SIZE);
+        client.receivePushed(true);
+        assertEquals(IMAGES, client.getLastIndex());
+
+        // Pushed but never acknowledged, so it comes again after a reconnect
+        server.addPicture(SIZE);
+        client.receivePushed(false);
+        assertEquals(IMAGES + 1, client.getLastIndex());
+        client.close();
+        client = new FakePcClient(server.getAddress());
+        client.subscribe();
+        client.receivePushed(true);
+        assertEquals(IMAGES + 1, client.getLastIndex());
+
+        client.unsubscribe();
+        assertFalse(client.requestNext());
+        assertEquals(IMAGES + 2, server.getCatalog().firstUndelivered());
+    }
+
+    @Test
+    public void reconnectReplacesTheOldConnection() throws Exception {
+        assertTrue(client.requestNext());
+
+        // More connections than the server has threads, as from a PC whose earlier
+        // connections went half open and never sent a FIN
+        FakePcClient[] reconnects = new FakePcClient[5];
+        try {
+            for (int i = 0; i < reconnects.length; i++) {
+                reconnects[i] = new FakePcClient(server.getAddress());
+                assertTrue(reconnects[i].requestNext());
+                assertEquals(i + 1, reconnects[i].getLastIndex());
+            }
+            assertTrue(client.awaitClosed());
+            assertTrue(reconnects[0].awaitClosed());
+        } finally {
+            for (FakePcClient reconnect : reconnects) {
+                if (reconnect != null)
+                    reconnect.close();
+            }
+        }
+    }
+
+    @Test
+    public void timeRangeIsInclusiveInMillis() throws Exception {
+        long base = LoopbackServer.BASE_NANOS / 1000000;
+        // Pictures 2 and 3 are 66.67 and 99.99 ms in, the last millisecond counts whole
+        assertEquals(2, client.requestTimeRange(base + 34, base + 99));
+        assertEquals(3, client.getLastIndex());
+
+        // Ends far enough out to overflow in nanoseconds are clamped instead
+        assertEquals(IMAGES, client.requestTimeRange(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(IMAGES, client.requestTimeRange(-base, Long.MAX_VALUE / 1000));
+
+        // Nothing between the pictures, before them, or with the ends swapped
+        assertEquals(0, client.requestTimeRange(base + 1, base + 32));
+        assertEquals(0, client.requestTimeRange(0, base - 1));
+        assertEquals(0, client.requestTimeRange(base + 99, base + 34));
+
+        // Still talking to us
+        assertTrue(client.request(0));
+    }
+
+    @Test
+    public void timeRangeInNanos() throws Exception {
+        client.requestNanos();
+        long picture = LoopbackServer.BASE_NANOS + 4 * LoopbackServer.FRAME_NANOS;
+        assertEquals(1, client.requestTimeRange(picture, picture));
+        assertEquals(4, client.getLastIndex());
+        assertEquals(picture, client.getLastTimestamp());
+        assertEquals(0, client.requestTimeRange(picture + 1,
+                picture + LoopbackServer.FRAME_NANOS - 1));
+    }
+
+    @Test
+    public void truncatedRangeClosesTheConnection() throws Exception {
+        // Only the first argument, the phone must not take the missing one as "to the end"
+        assertTrue(client.sendTruncated(FakePcClient.PC_REQUEST_RANGE, 0));
+        assertEquals(0, client.getBytesReceived());
+    }
+
+    @Test
+    public void statsCoverEveryHistogram() throws Exception {
+        assertTrue(client.requestNext());
+        long[][] stats = client.requestStats();
+        assertEquals(Metrics.ALL.length, stats.length);
+    }
+
+    @Test
+    public void triggersComeBackWithTheirCapture() throws Exception {
+        TriggerLog triggers = server.getCatalog().getTriggers();
+        triggers.append(LoopbackServer.BASE_NANOS, LoopbackServer.BASE_NANOS);
+        triggers.append(LoopbackServer.BASE_NANOS + 4000000, LoopbackServer.BASE_NANOS);
+
+        long[][] received = client.requestTriggers(1);
+        assertEquals(1, received.length);
+        assertEquals((LoopbackServer.BASE_NANOS + 4000000) / 1000000, received[0][0]);
+        assertEquals(LoopbackServer.BASE_NANOS / 1000000, received[0][1]);
+        assertEquals(0, client.requestTriggers(2).length);
+    }
+
+    @Test
+    public void unknownCommandIsNotImplemented() throws Exception {
+        assertEquals(FakePcClient.NOT_IMPLEMENTED, client.sendRaw(9999));
+        client.ack();
+
+        // Still talking to us
+        assertTrue(client.requestNext());
+    }
+}
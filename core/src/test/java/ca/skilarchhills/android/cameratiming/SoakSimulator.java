@@ -0,0 +1,494 @@
+package ca.skilarchhills.android.cameratiming;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Race day on a desktop: fires triggers at the real {@link ImageServer} and has simulated
+ * PCs fetch the pictures, reporting throughput, trigger to PC latency and backlog as it
+ * goes.  Meant for soak runs of hours, so pictures are hard links to a few JPEGs encoded
+ * up front and the disk doesn't fill.
+ *
+ *   ./gradlew :core:soak -Pargs="--duration 10800 --clients 2 --burst 40 --burst-every 600"
+ *
+ * Each PC connects from its own loopback address (127.0.0.1, 127.0.0.2, ...), so the
+ * server keeps separate progress for them like it would for separate laptops.
+ */
+public class SoakSimulator {
+    // Distinct pictures to link to, so consecutive sends aren't byte identical
+    private static final int TEMPLATES = 8;
+
+    // How often the backlog is sampled between triggers
+    private static final long SAMPLE_NANOS = 100000000L;
+
+    // How long the PCs get to catch up once triggers stop
+    private static final long DRAIN_NANOS = 60000000000L;
+
+    static class Options {
+        long durationSeconds = 60;
+        // Background triggers per second, arriving at random
+        double rate = 1;
+        // Mass finish: burst triggers at burstRate per second, every burstEvery seconds
+        int burst = 0;
+        double burstRate = 20;
+        long burstEvery = 300;
+        int clients = 1;
+        // "next" for PC_REQUEST_NEXT, "specific" for PC_REQUEST_SPECIFIC
+        String mode = "next";
+        long pollMillis = 20;
+        int width = 1920;
+        int height = 1080;
+        int quality = 85;
+        long reportSeconds = 10;
+        File dir;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+                switch (arg) {
+                    case "--duration": options.durationSeconds = Long.parseLong(value); break;
+                    case "--rate": options.rate = Double.parseDouble(value); break;
+                    case "--burst": options.burst = Integer.parseInt(value); break;
+                    case "--burst-rate": options.burstRate = Double.parseDouble(value); break;
+                    case "--burst-every": options.burstEvery = Long.parseLong(value); break;
+                    case "--clients": options.clients = Integer.parseInt(value); break;
+                    case "--mode": options.mode = value; break;
+                    case "--poll-ms": options.pollMillis = Long.parseLong(value); break;
+                    case "--width": options.width = Integer.parseInt(value); break;
+                    case "--height": options.height = Integer.parseInt(value); break;
+                    case "--quality": options.quality = Integer.parseInt(value); break;
+                    case "--report": options.reportSeconds = Long.parseLong(value); break;
+                    case "--dir": options.dir = new File(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (!options.mode.equals("next") && !options.mode.equals("specific"))
+                throw new IllegalArgumentException("--mode is next or specific");
+            if (options.clients < 1 || options.clients > 254)
+                throw new IllegalArgumentException("--clients is 1 to 254");
+            return options;
+        }
+    }
+
+    /**
+     * When the triggers fire: random background arrivals at the average rate, plus evenly
+     * spaced bursts for mass finishes, the first one a burst interval in.
+     */
+    static class TriggerSchedule {
+        private final Options options;
+        private final Random random = new Random(1);
+        private long nextBackground;
+        private long nextBurstStart;
+        private long nextBurstTrigger = Long.MAX_VALUE;
+        private int burstLeft;
+
+        TriggerSchedule(Options options, long start) {
+            this.options = options;
+            nextBackground = options.rate > 0 ? start + exponential(options.rate) : Long.MAX_VALUE;
+            nextBurstStart = options.burst > 0 ? start + options.burstEvery * 1000000000L :
+                    Long.MAX_VALUE;
+        }
+
+        private long exponential(double perSecond) {
+            return (long) (-Math.log(1 - random.nextDouble()) / perSecond * 1e9);
+        }
+
+        /**
+         * @return nanoTime of the next trigger
+         */
+        long peek() {
+            if (burstLeft == 0 && nextBurstStart != Long.MAX_VALUE) {
+                burstLeft = options.burst;
+                nextBurstTrigger = nextBurstStart;
+                nextBurstStart += options.burstEvery * 1000000000L;
+            }
+            return Math.min(nextBackground, nextBurstTrigger);
+        }
+
+        void take() {
+            if (nextBurstTrigger <= nextBackground) {
+                nextBurstTrigger = --burstLeft > 0 ?
+                        nextBurstTrigger + (long) (1e9 / options.burstRate) : Long.MAX_VALUE;
+            } else {
+                nextBackground += exponential(options.rate);
+            }
+        }
+    }
+
+    /**
+     * One timing PC, fetching pictures as they appear and reconnecting if it gets dropped
+     */
+    class SimulatedPc implements Runnable {
+        private final InetAddress local;
+        // Index after the last picture received
+        volatile int next;
+        final AtomicLong images = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        SimulatedPc(InetAddress local) {
+            this.local = local;
+        }
+
+        @Override
+        public void run() {
+            while (wanted()) {
+                FakePcClient client = null;
+                try {
+                    client = new FakePcClient(address, local);
+                    client.requestNanos();
+                    connected.countDown();
+                    fetch(client);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    System.err.println(local.getHostAddress() + ": " + e);
+                    sleep(1000);
+                } finally {
+                    if (client != null) {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Whether to keep fetching, once draining only until this PC has everything
+         */
+        private boolean wanted() {
+            try {
+                return running || (draining && next < catalog.size());
+            } catch (IOException e) {
+                // Nothing more to fetch from a catalog that can't be read
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        private void fetch(FakePcClient client) throws IOException {
+            boolean specific = options.mode.equals("specific");
+            while (wanted()) {
+                if (!client.request(specific ? next : -1)) {
+                    sleep(options.pollMillis);
+                    continue;
+                }
+                long delay = wallNanos() - client.getLastTimestamp();
+                latency.record(delay);
+                interval.record(delay);
+                images.incrementAndGet();
+                bytes.addAndGet(client.getLastLength());
+                next = (int) client.getLastIndex() + 1;
+            }
+        }
+    }
+
+    private final Options options;
+    private final ImageCatalog catalog;
+    private final SocketAddress address;
+    private final List<SimulatedPc> pcs = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram("delivery");
+    private volatile LatencyHistogram interval = new LatencyHistogram("interval");
+    private final CountDownLatch connected;
+    private volatile boolean running = true;
+    private volatile boolean draining;
+
+    // Wall clock the pictures are stamped with, kept in step with nanoTime
+    private final long wallBase = System.currentTimeMillis() * 1000000;
+    private final long nanoBase = System.nanoTime();
+
+    private int maxBacklog;
+
+    SoakSimulator(Options options, ImageCatalog catalog, SocketAddress address) {
+        this.options = options;
+        this.catalog = catalog;
+        this.address = address;
+        connected = new CountDownLatch(options.clients);
+    }
+
+    private long wallNanos() {
+        return wallBase + System.nanoTime() - nanoBase;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pictures the furthest behind PC hasn't got yet
+     */
+    private int backlog() throws IOException {
+        int size = catalog.size();
+        int worst = 0;
+        for (SimulatedPc pc : pcs)
+            worst = Math.max(worst, size - pc.next);
+        return worst;
+    }
+
+    private void sampleBacklog() throws IOException {
+        maxBacklog = Math.max(maxBacklog, backlog());
+    }
+
+    /**
+     * Encodes a few noisy frames, so the JPEGs come out near camera sizes
+     */
+    private List<File> encodeTemplates(File dir) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(options.quality / 100f);
+
+        Random random = new Random(2);
+        List<File> templates = new ArrayList<>();
+        for (int t = 0; t < TEMPLATES; t++) {
+            BufferedImage image = new BufferedImage(options.width, options.height,
+                    BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < options.height; y++) {
+                for (int x = 0; x < options.width; x++) {
+                    int shade = (x + y + t * 32) & 0xff;
+                    int noise = random.nextInt(48);
+                    int value = Math.min(255, shade / 2 + noise);
+                    image.setRGB(x, y, value << 16 | (255 - value) << 8 | (shade ^ noise));
+                }
+            }
+
+            File file = new File(dir, "template" + t + ".jpg");
+            ImageOutputStream out = ImageIO.createImageOutputStream(file);
+            try {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                out.close();
+            }
+            templates.add(file);
+        }
+        writer.dispose();
+        return templates;
+    }
+
+    /**
+     * Adds a picture as if the trigger had just fired
+     */
+    private void trigger(List<File> templates, File dir) throws IOException {
+        long timestamp = wallNanos();
+        File template = templates.get(catalog.size() % templates.size());
+        File picture = new File(dir, ImageName.format(timestamp));
+        try {
+            Files.createLink(picture.toPath(), template.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(template.toPath(), picture.toPath());
+        }
+        catalog.append(timestamp, (int) template.length(), 0);
+    }
+
+    private long totalImages() {
+        long images = 0;
+        for (SimulatedPc pc : pcs)
+            images += pc.images.get();
+        return images;
+    }
+
+    private long totalBytes() {
+        long bytes = 0;
+        for (SimulatedPc pc : pcs)
+            bytes += pc.bytes.get();
+        return bytes;
+    }
+
+    private long totalErrors() {
+        long errors = 0;
+        for (SimulatedPc pc : pcs)
+            errors += pc.errors.get();
+        return errors;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.1f", micros / 1000.0);
+    }
+
+    private long lastImages;
+    private long lastBytes;
+    private long lastReport;
+
+    private void report(long now) throws IOException {
+        LatencyHistogram current = interval;
+        interval = new LatencyHistogram("interval");
+        long images = totalImages();
+        long bytes = totalBytes();
+        double seconds = (now - lastReport) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "%6ds  triggers %d  delivered %d  %.1f img/s  %.1f MB/s  " +
+                        "latency p50 %s p99 %s max %s ms  backlog %d (max %d)  errors %d",
+                (now - nanoBase) / 1000000000L, catalog.size(), images,
+                (images - lastImages) / seconds, (bytes - lastBytes) / seconds / 1e6,
+                millis(current.getPercentileMicros(0.5)), millis(current.getPercentileMicros(0.99)),
+                millis(current.getMaxMicros()), backlog(), maxBacklog, totalErrors()));
+        lastImages = images;
+        lastBytes = bytes;
+        lastReport = now;
+    }
+
+    private void summarise() throws IOException {
+        long seconds = Math.max(1, (System.nanoTime() - nanoBase) / 1000000000L);
+        System.out.println();
+        System.out.println(String.format(Locale.US,
+                "%d triggers, %d deliveries to %d PCs in %ds, %.2f img/s, %.1f MB/s, %d errors",
+                catalog.size(), totalImages(), pcs.size(), seconds,
+                totalImages() / (double) seconds, totalBytes() / (double) seconds / 1e6,
+                totalErrors()));
+        System.out.println(String.format(Locale.US,
+                "trigger to PC latency p50 %s p90 %s p99 %s p99.9 %s max %s ms, max backlog %d",
+                millis(latency.getPercentileMicros(0.5)), millis(latency.getPercentileMicros(0.9)),
+                millis(latency.getPercentileMicros(0.99)), millis(latency.getPercentileMicros(0.999)),
+                millis(latency.getMaxMicros()), maxBacklog));
+        for (LatencyHistogram histogram : Metrics.ALL) {
+            if (histogram.getCount() > 0)
+                System.out.println(String.format(Locale.US,
+                        "server %-6s count %d p50 %s p99 %s max %s ms", histogram.getName(),
+                        histogram.getCount(), millis(histogram.getPercentileMicros(0.5)),
+                        millis(histogram.getPercentileMicros(0.99)),
+                        millis(histogram.getMaxMicros())));
+        }
+    }
+
+    void run(File dir) throws IOException, InterruptedException {
+        File templateDir = new File(dir, "templates");
+        if (!templateDir.isDirectory() && !templateDir.mkdirs())
+            throw new IOException("Couldn't create " + templateDir);
+        List<File> templates = encodeTemplates(templateDir);
+        System.out.println(String.format(Locale.US, "Pictures %dx%d, about %d KB",
+                options.width, options.height, templates.get(0).length() / 1024));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.clients; i++) {
+            SimulatedPc pc = new SimulatedPc(
+                    InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) (i + 1)}));
+            pcs.add(pc);
+            threads.add(new Thread(pc, "pc" + (i + 1)));
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        // A PC that connects late would start at the first picture nobody has yet
+        if (!connected.await(10, TimeUnit.SECONDS))
+            throw new IOException("PCs couldn't connect");
+
+        long start = System.nanoTime();
+        long end = start + options.durationSeconds * 1000000000L;
+        long nextReport = start + options.reportSeconds * 1000000000L;
+        lastReport = start;
+        TriggerSchedule schedule = new TriggerSchedule(options, start);
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end)
+                break;
+            if (schedule.peek() <= now) {
+                schedule.take();
+                trigger(templates, dir);
+            }
+            sampleBacklog();
+            if (now >= nextReport) {
+                report(now);
+                nextReport += options.reportSeconds * 1000000000L;
+            }
+            long wait = Math.min(Math.min(schedule.peek(), end), now + SAMPLE_NANOS) -
+                    System.nanoTime();
+            if (wait > 0)
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+
+        // Let the PCs catch up, then stop them
+        draining = true;
+        running = false;
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while (backlog() > 0 && System.nanoTime() < drainEnd)
+            Thread.sleep(100);
+        draining = false;
+        for (Thread thread : threads)
+            thread.join();
+        report(System.nanoTime());
+        summarise();
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory())
+                    deleteAll(file);
+                else
+                    file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Options: --duration s, --rate per s, --burst n, --burst-rate per s,"
+                    + " --burst-every s, --clients n, --mode next|specific, --poll-ms ms,"
+                    + " --width px, --height px, --quality 1-100, --report s, --dir path");
+            System.exit(2);
+            return;
+        }
+
+        boolean temporary = options.dir == null;
+        File dir = temporary ? Files.createTempDirectory("soak").toFile() : options.dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Couldn't create " + dir);
+
+        // The server's own per connection chatter would drown the report
+        CoreLog.setSink(new CoreLog.Sink() {
+            @Override
+            public boolean isLoggable(String tag, int level) {
+                return level >= CoreLog.WARN;
+            }
+
+            @Override
+            public void println(int level, String tag, String message) {
+                System.err.println(tag + ": " + message);
+            }
+        });
+
+        LoopbackServer server = new LoopbackServer(dir, 0, 0, options.clients);
+        try {
+            new SoakSimulator(options, server.getCatalog(), server.getAddress()).run(dir);
+        } finally {
+            server.close();
+            if (temporary)
+                deleteAll(dir);
+        }
+    }
+}
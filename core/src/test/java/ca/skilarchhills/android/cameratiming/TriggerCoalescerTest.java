@@ -0,0 +1,81 @@
+package ca.skilarchhills.android.cameratiming;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for trigger merging, the trigger log and picture times
+ */
+public class TriggerCoalescerTest {
+    private static final long MS = 1000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bounceJoinsTheFirstCapture() {
+        TriggerCoalescer coalescer = new TriggerCoalescer(25 * MS);
+
+        assertTrue(coalescer.offer(1000 * MS));
+        assertFalse(coalescer.offer(1003 * MS));
+        assertFalse(coalescer.offer(1025 * MS));
+        assertEquals(1000 * MS, coalescer.getBurstStart());
+
+        // Measured from the first trigger, so a long bounce still captures again
+        assertTrue(coalescer.offer(1026 * MS));
+        assertEquals(1026 * MS, coalescer.getBurstStart());
+    }
+
+    @Test
+    public void zeroWindowCapturesEveryTrigger() {
+        TriggerCoalescer coalescer = new TriggerCoalescer(0);
+
+        assertTrue(coalescer.offer(1000 * MS));
+        assertTrue(coalescer.offer(1000 * MS));
+    }
+
+    @Test
+    public void triggersOnOneFrameGetPicturesOfTheirOwn() {
+        PictureTimes times = new PictureTimes();
+        long frame = 1000 * MS;
+
+        long first = times.next(frame);
+        long second = times.next(frame);
+        assertEquals(frame, first);
+        assertEquals(frame + 1, second);
+        assertFalse(ImageName.format(first).equals(ImageName.format(second)));
+
+        // The next frame keeps its own time, unless it's caught up with
+        assertEquals(frame + 33 * MS, times.next(frame + 33 * MS));
+        assertEquals(frame + 33 * MS + 1, times.next(frame + 33 * MS));
+    }
+
+    @Test
+    public void triggerLogSurvivesReopenAndTornRecord() throws Exception {
+        File dir = folder.newFolder();
+        TriggerLog log = new TriggerLog(dir);
+        assertEquals(0, log.append(1000 * MS, 1000 * MS));
+        assertEquals(1, log.append(1005 * MS, 1000 * MS));
+
+        // Half a record left by a crash
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "triggers.dat"), "rw");
+        file.seek(file.length());
+        file.write(new byte[7]);
+        file.close();
+
+        TriggerLog reopened = new TriggerLog(dir);
+        assertEquals(2, reopened.size());
+        assertEquals(1005 * MS, reopened.getTime(1));
+        assertEquals(1000 * MS, reopened.getBurst(1));
+        assertEquals(2, reopened.append(2000 * MS, 2000 * MS));
+        assertEquals(3, new TriggerLog(dir).size());
+    }
+}